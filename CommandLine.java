@@ -0,0 +1,146 @@
+/**
+ * One command, split into tokens in a single pass without regular expressions.
+ *
+ * Tokens are the same as those of the former {@code "([^"]*)"|(\S+)} pattern applied to the
+ * trimmed command: runs of non-blank characters, or, when a token starts with a double quote
+ * that is closed later on, the (possibly empty) text between the quotes. Tokens are kept as
+ * offsets into the command, so parsing, comparing tokens and reading integer arguments
+ * allocate nothing; only {@link #get(int)} creates a String. A CommandLine is reused for
+ * one command after another by one thread.
+ */
+public class CommandLine
+{
+    /**
+     * Returned by {@link #parseInt(int)} for a token that is not an int.
+     */
+    public static final long NOT_AN_INT = Long.MIN_VALUE;
+
+    private String source = "";
+    private int count;
+    private int[] start = new int[8];
+    private int[] end = new int[8];
+
+    /**
+     * Splits {@code command} into tokens, replacing those of the previous command.
+     */
+    public CommandLine parse(String command)
+    {
+        source = command;
+        count = 0;
+        int lo = 0;
+        int hi = command.length();
+        // String.trim()
+        while (lo < hi && command.charAt(lo) <= ' ') {
+            lo++;
+        }
+        while (hi > lo && command.charAt(hi - 1) <= ' ') {
+            hi--;
+        }
+
+        int i = lo;
+        while (i < hi) {
+            char c = command.charAt(i);
+            if (isBlank(c)) {
+                i++;
+                continue;
+            }
+            if (c == '"') {
+                int close = command.indexOf('"', i + 1);
+                if (close >= 0 && close < hi) {
+                    add(i + 1, close);
+                    i = close + 1;
+                    continue;
+                }
+            }
+            int j = i + 1;
+            while (j < hi && !isBlank(command.charAt(j))) {
+                j++;
+            }
+            add(i, j);
+            i = j;
+        }
+        return this;
+    }
+
+    public int count()
+    {
+        return count;
+    }
+
+    /**
+     * @return true if token {@code i} is exactly {@code s}
+     */
+    public boolean is(int i, String s)
+    {
+        int length = end[i] - start[i];
+        return length == s.length() && source.regionMatches(start[i], s, 0, length);
+    }
+
+    public String get(int i)
+    {
+        return source.substring(start[i], end[i]);
+    }
+
+    /**
+     * Parses token {@code i} the way {@link Integer#parseInt(String)} does, without throwing.
+     *
+     * @return its value, or {@link #NOT_AN_INT} if it is not an int
+     */
+    public long parseInt(int i)
+    {
+        int p = start[i];
+        int e = end[i];
+        if (p == e) {
+            return NOT_AN_INT;
+        }
+        boolean negative = false;
+        char first = source.charAt(p);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            if (++p == e) {
+                return NOT_AN_INT;
+            }
+        }
+        long value = 0;
+        for (; p < e; p++) {
+            int digit = Character.digit(source.charAt(p), 10);
+            if (digit < 0) {
+                return NOT_AN_INT;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return NOT_AN_INT;
+            }
+        }
+        if (negative) {
+            value = -value;
+        }
+        return value > Integer.MAX_VALUE ? NOT_AN_INT : value;
+    }
+
+    public String[] toArray()
+    {
+        String[] tokens = new String[count];
+        for (int i = 0; i < count; i++) {
+            tokens[i] = get(i);
+        }
+        return tokens;
+    }
+
+    // \s of java.util.regex
+    private static boolean isBlank(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private void add(int s, int e)
+    {
+        if (count == start.length) {
+            start = java.util.Arrays.copyOf(start, count * 2);
+            end = java.util.Arrays.copyOf(end, count * 2);
+        }
+        start[count] = s;
+        end[count] = e;
+        count++;
+    }
+}
@@ -0,0 +1,290 @@
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of JDBC connections shared by all {@code Query} sessions of a JVM.
+ *
+ * Sessions borrow a connection for the duration of one transaction and hand it back on
+ * commit or rollback. Each pooled connection keeps its own cache of prepared statements,
+ * so a statement is only prepared once per physical connection. Cached statements are
+ * measured by {@link Metrics}.
+ */
+public class ConnectionPool
+{
+    private static final Map<String, ConnectionPool> pools = new HashMap<>();
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long timeoutMillis;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed;
+
+    // statistics
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong borrowNanos = new AtomicLong();
+    private final AtomicLong maxBorrowNanos = new AtomicLong();
+
+    /**
+     * A physical connection together with its prepared-statement cache.
+     */
+    public static class PooledConnection
+    {
+        private final Connection conn;
+        private final Map<String, PreparedStatement> statements = new HashMap<>();
+        private final Map<String, CallableStatement> calls = new HashMap<>();
+
+        private PooledConnection(Connection conn) {
+            this.conn = conn;
+        }
+
+        public Connection connection() {
+            return conn;
+        }
+
+        /**
+         * Returns the cached statement for {@code sql}, preparing it on first use.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null) {
+                ps = conn.prepareStatement(sql);
+                statements.put(sql, ps);
+            }
+            return ps;
+        }
+
+        /**
+         * Same as {@link #prepare(String)} for stored procedure calls.
+         */
+        public CallableStatement prepareCall(String sql) throws SQLException {
+            CallableStatement cs = calls.get(sql);
+            if (cs == null) {
+                cs = conn.prepareCall(sql);
+                calls.put(sql, cs);
+            }
+            return cs;
+        }
+
+        private void close() {
+            try {
+                conn.close(); // also closes the cached statements
+            } catch (SQLException e) {}
+        }
+    }
+
+    /**
+     * Snapshot of the pool statistics.
+     */
+    public static class Stats
+    {
+        public final int maxSize;
+        public final int active;
+        public final int idle;
+        public final long borrows;
+        public final long timeouts;
+        public final long created;
+        public final long discarded;
+        public final long totalWaitMicros;
+        public final long maxWaitMicros;
+        public final long totalBorrowMicros;
+        public final long maxBorrowMicros;
+
+        private Stats(ConnectionPool p) {
+            maxSize = p.maxSize;
+            idle = p.idle.size();
+            active = Math.max(0, p.maxSize - p.permits.availablePermits());
+            borrows = p.borrows.get();
+            timeouts = p.timeouts.get();
+            created = p.created.get();
+            discarded = p.discarded.get();
+            totalWaitMicros = p.waitNanos.get() / 1000;
+            maxWaitMicros = p.maxWaitNanos.get() / 1000;
+            totalBorrowMicros = p.borrowNanos.get() / 1000;
+            maxBorrowMicros = p.maxBorrowNanos.get() / 1000;
+        }
+
+        public long avgWaitMicros() {
+            return borrows == 0 ? 0 : totalWaitMicros / borrows;
+        }
+
+        public long avgBorrowMicros() {
+            return borrows == 0 ? 0 : totalBorrowMicros / borrows;
+        }
+
+        @Override
+        public String toString() {
+            return "pool: active " + active + "/" + maxSize + " idle " + idle +
+                   " borrows " + borrows + " timeouts " + timeouts + " created " + created + " discarded " + discarded +
+                   " wait avg " + avgWaitMicros() + "us max " + maxWaitMicros + "us" +
+                   " borrow avg " + avgBorrowMicros() + "us max " + maxBorrowMicros + "us";
+        }
+    }
+
+    public ConnectionPool(String url, String user, String password, int maxSize, long timeoutMillis)
+    {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.timeoutMillis = timeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Returns the pool for the given connection settings, creating it on first use.
+     */
+    public static ConnectionPool shared(Properties configProps) throws Exception
+    {
+        String url = configProps.getProperty("flightservice.url");
+        String user = configProps.getProperty("flightservice.sqlazure_username");
+        synchronized (pools) {
+            ConnectionPool pool = pools.get(url + "|" + user);
+            if (pool == null || pool.closed) {
+                /* load jdbc drivers */
+                Class.forName(configProps.getProperty("flightservice.jdbc_driver")).getDeclaredConstructor().newInstance();
+                pool = new ConnectionPool(url, user,
+                                          configProps.getProperty("flightservice.sqlazure_password"),
+                                          Integer.parseInt(configProps.getProperty("flightservice.pool_size", "8").trim()),
+                                          Long.parseLong(configProps.getProperty("flightservice.pool_timeout_ms", "30000").trim()));
+                pools.put(url + "|" + user, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Closes every shared pool. Called once when the service shuts down.
+     */
+    public static void shutdownAll()
+    {
+        synchronized (pools) {
+            for (ConnectionPool pool : pools.values()) {
+                pool.close();
+            }
+            pools.clear();
+        }
+    }
+
+    /**
+     * Borrows a connection, waiting up to the configured timeout for one to become free.
+     * The connection is returned in auto-commit mode.
+     */
+    public PooledConnection borrow() throws SQLException
+    {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Timed out waiting for a pooled connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a pooled connection", e);
+        }
+        return open(start, System.nanoTime());
+    }
+
+    /**
+     * Borrows a connection if one is free right away, without waiting and without going ahead
+     * of the sessions that are waiting for one.
+     *
+     * @return the connection in auto-commit mode, or null if none is free
+     */
+    public PooledConnection tryBorrow() throws SQLException
+    {
+        long start = System.nanoTime();
+        if (permits.hasQueuedThreads() || !permits.tryAcquire()) {
+            return null;
+        }
+        return open(start, System.nanoTime());
+    }
+
+    // hands out an idle or a new connection for a permit acquired at acquired
+    private PooledConnection open(long start, long acquired) throws SQLException
+    {
+        if (closed) {
+            permits.release();
+            throw new SQLException("Connection pool is closed");
+        }
+
+        PooledConnection pc;
+        try {
+            pc = idle.pollFirst();
+            if (pc == null) {
+                pc = new PooledConnection(DriverManager.getConnection(url, user, password));
+                pc.conn.setAutoCommit(true);
+                created.incrementAndGet();
+            }
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        }
+
+        long end = System.nanoTime();
+        borrows.incrementAndGet();
+        record(waitNanos, maxWaitNanos, acquired - start);
+        record(borrowNanos, maxBorrowNanos, end - start);
+        return pc;
+    }
+
+    /**
+     * Hands a connection back to the pool. Connections that failed mid-transaction are closed
+     * rather than reused.
+     */
+    public void release(PooledConnection pc, boolean broken)
+    {
+        if (broken || closed) {
+            pc.close();
+            discarded.incrementAndGet();
+        } else {
+            try {
+                pc.conn.setAutoCommit(true);
+                idle.offerFirst(pc); // most recently used first keeps the working set small
+            } catch (SQLException e) {
+                pc.close();
+                discarded.incrementAndGet();
+            }
+        }
+        permits.release();
+    }
+
+    public Stats stats()
+    {
+        return new Stats(this);
+    }
+
+    public void close()
+    {
+        closed = true;
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            pc.close();
+        }
+    }
+
+    private static void record(AtomicLong total, AtomicLong max, long nanos)
+    {
+        total.addAndGet(nanos);
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {}
+    }
+}
@@ -0,0 +1,84 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded fid -> Flight cache shared by all sessions.
+ *
+ * Cached {@code Query.Flight} objects are handed out as they are; a flight whose row changes
+ * is dropped with {@link #remove}. The least recently used entry is evicted once the cache is
+ * full.
+ */
+public class FlightCache
+{
+    private static FlightCache shared;
+
+    private final Map<Integer, Query.Flight> flights;
+
+    public FlightCache(final int capacity)
+    {
+        this.flights = new LinkedHashMap<Integer, Query.Flight>(Math.min(capacity, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Query.Flight> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache shared by all sessions in this JVM, creating it with the given
+     * capacity the first time it is requested.
+     */
+    public static synchronized FlightCache shared(int capacity)
+    {
+        if (shared == null) {
+            shared = new FlightCache(capacity);
+        }
+        return shared;
+    }
+
+    /**
+     * @return the cached flight, or null if {@code fid} is not cached
+     */
+    public synchronized Query.Flight get(int fid)
+    {
+        return flights.get(fid);
+    }
+
+    public synchronized void put(Query.Flight f)
+    {
+        flights.put(f.getFid(), f);
+    }
+
+    public synchronized void remove(int fid)
+    {
+        flights.remove(fid);
+    }
+
+    public synchronized int size()
+    {
+        return flights.size();
+    }
+
+    /**
+     * Returns the flight whose columns are in the current row of {@code rs}, reading the row
+     * only on a cache miss. Columns are named with the given suffix (e.g. "fid1", "day1", ...);
+     * the fid column is read as given.
+     *
+     * @return the flight, or null if the fid column is NULL
+     */
+    public Query.Flight get(ResultSet rs, String fidColumn, String suffix) throws SQLException
+    {
+        int fid = rs.getInt(fidColumn);
+        if (rs.wasNull()) {
+            return null;
+        }
+        Query.Flight f = get(fid);
+        if (f == null) {
+            f = new Query.Flight(fid, rs.getInt("day" + suffix), rs.getString("carrier" + suffix), rs.getString("num" + suffix), rs.getString("origin" + suffix), rs.getString("dest" + suffix), rs.getInt("time" + suffix), rs.getInt("capacity" + suffix), rs.getInt("price" + suffix));
+            put(f);
+        }
+        return f;
+    }
+}
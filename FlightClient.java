@@ -0,0 +1,191 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Client side of the {@link FlightServer} line protocol.
+ *
+ * Usage: java FlightClient [host] [port] [-binary]
+ *
+ * Reads commands from standard input and prints the responses, like the interactive menu
+ * of {@link FlightService}. Load tools use {@link #execute(String)} directly, one client per
+ * simulated user. A binary client uses the server's length-prefixed framing, which returns
+ * responses exactly, with or without a final newline.
+ */
+public class FlightClient implements Closeable
+{
+    // commands pipelined before their responses are read. The server writes responses while
+    // it reads commands, so a client that sent a whole large batch first could block writing
+    // while the server blocks writing responses nobody reads; a window fits the socket buffers.
+    private static final int WINDOW = 32;
+
+    private final Socket socket;
+    private final boolean binary;
+    private final BufferedReader in;
+    private final Writer out;
+    private final DataInputStream binaryIn;
+    private final DataOutputStream binaryOut;
+    private final StringBuilder response = new StringBuilder();
+
+    public FlightClient(String host, int port) throws IOException
+    {
+        this(host, port, false);
+    }
+
+    public FlightClient(String host, int port, boolean binary) throws IOException
+    {
+        this.socket = new Socket(host, port);
+        this.binary = binary;
+        socket.setTcpNoDelay(true);
+        if (binary) {
+            in = null;
+            out = null;
+            binaryIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            binaryOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            binaryOut.write(FlightServer.BINARY_MAGIC);
+        } else {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            binaryIn = null;
+            binaryOut = null;
+        }
+    }
+
+    /**
+     * Sends one command and waits for its response. Over the text protocol every line of the
+     * response, including the last one, ends with a newline.
+     */
+    public String execute(String command) throws IOException
+    {
+        if (binary) {
+            byte[] bytes = command.getBytes(StandardCharsets.UTF_8);
+            binaryOut.write(FlightServer.FRAME_COMMAND);
+            binaryOut.writeInt(bytes.length);
+            binaryOut.write(bytes);
+            binaryOut.flush();
+            return readFrame();
+        }
+
+        out.write(command);
+        out.write('\n');
+        out.flush();
+        return readResponse();
+    }
+
+    private String readResponse() throws IOException
+    {
+        response.setLength(0);
+        String line;
+        while (!(line = readLine()).equals(FlightServer.TERMINATOR)) {
+            if (line.startsWith(".")) {
+                line = line.substring(1);
+            }
+            response.append(line).append('\n');
+        }
+        return response.toString();
+    }
+
+    /**
+     * Sends all commands and waits for their responses, in order. Over the text protocol the
+     * commands are pipelined in windows of {@link #WINDOW}; a binary client sends them as one
+     * batch frame. The responses stop early at "quit".
+     */
+    public List<String> executeBatch(List<String> commands) throws IOException
+    {
+        List<String> responses = new ArrayList<>(commands.size());
+        if (binary) {
+            byte[] bytes = String.join("\n", commands).getBytes(StandardCharsets.UTF_8);
+            binaryOut.write(FlightServer.FRAME_BATCH);
+            binaryOut.writeInt(bytes.length);
+            binaryOut.write(bytes);
+            binaryOut.flush();
+            String r;
+            while ((r = readFrame()) != null) {
+                responses.add(r);
+            }
+            return responses;
+        }
+
+        for (int start = 0; start < commands.size(); start += WINDOW) {
+            int end = Math.min(commands.size(), start + WINDOW);
+            for (String command : commands.subList(start, end)) {
+                out.write(command);
+                out.write('\n');
+            }
+            out.flush();
+            for (int i = start; i < end; i++) {
+                String r = readResponse();
+                responses.add(r);
+                if (r.equals("Goodbye\n")) {
+                    return responses;
+                }
+            }
+        }
+        return responses;
+    }
+
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+
+    // null for the end of a batch
+    private String readFrame() throws IOException
+    {
+        int length = binaryIn.readInt();
+        if (length == FlightServer.END_OF_BATCH) {
+            return null;
+        }
+        if (length < 0 || length > FlightServer.MAX_FRAME) {
+            throw new IOException("bad frame");
+        }
+        byte[] bytes = new byte[length];
+        binaryIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String readLine() throws IOException
+    {
+        String line = in.readLine();
+        if (line == null) {
+            throw new EOFException("connection closed by the server");
+        }
+        return line;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 9414;
+        boolean binary = args.length > 2 && args[2].equals("-binary");
+
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+        try (FlightClient client = new FlightClient(host, port, binary)) {
+            String command;
+            while (true) {
+                System.out.print("> ");
+                if ((command = stdin.readLine()) == null) {
+                    break;
+                }
+                String response = client.execute(command);
+                System.out.print(response);
+                if (response.equals("Goodbye\n")) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,568 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Bulk loader for a CSV export of the Flights table.
+ *
+ * Usage: java FlightLoader [-threads n] [-batch n] [-replace] [-db] [-snapshot file] flights.csv
+ *
+ * The file is memory-mapped and cut into chunks at line ends, which are parsed in parallel
+ * straight from the mapped bytes: numbers are read digit by digit, and carriers, cities and
+ * states go through a dictionary per chunk, so a String is only created for the first
+ * occurrence of a value in a chunk. The rows are then
+ * <ul>
+ *   <li>with -db, inserted into the Flights table of dbconn.properties by one connection per
+ *       thread, with batches of -batch rows (default 5000) sent with executeBatch and
+ *       committed one at a time; -replace empties the table first,</li>
+ *   <li>with -snapshot, put into a {@link FlightStore} (non-canceled flights only) and
+ *       written to the file the route index maps at startup.</li>
+ * </ul>
+ * Threads default to the number of processors. Parse and load rates are printed in rows/s.
+ *
+ * The CSV has the columns of the table in table order, as described at
+ * {@link FlightStore#loadCsv}. An empty field is a NULL (0 or a null String in a
+ * FlightStore), and a first line whose fid is not a number is a header. Quoted fields may not
+ * contain line breaks.
+ */
+public class FlightLoader
+{
+    private static final String INSERT_FLIGHT = "INSERT INTO Flights VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String CLEAR_FLIGHTS = "TRUNCATE TABLE Flights";
+
+    private static final int COLUMNS = 18;
+    private static final int FID = 0, DAY = 2, CARRIER = 4, NUMBER = 5, ORIGIN = 6, DEST = 8,
+                             CANCELED = 13, TIME = 14, CAPACITY = 16, PRICE = 17;
+    // carrier_id, origin_city, origin_state, dest_city, dest_state; the other columns are ints
+    private static final boolean[] TEXT = new boolean[COLUMNS];
+    static {
+        for (int c : new int[] {4, 6, 7, 8, 9}) {
+            TEXT[c] = true;
+        }
+    }
+    // the id of an empty text field, which is no string of the chunk's dictionary
+    private static final int NULL_STRING = -1;
+
+    /**
+     * The rows of one chunk of the file, column by column. A text column holds ids into
+     * {@link #strings}, or NULL_STRING; bit c of {@link #nulls} is set for an empty field in
+     * column c.
+     */
+    static final class Chunk
+    {
+        private int rows;
+        private int[][] columns = new int[COLUMNS][1024];
+        private int[] nulls = new int[1024];
+        private final Dictionary strings = new Dictionary();
+
+        int rows() {
+            return rows;
+        }
+
+        private int newRow() {
+            if (rows == nulls.length) {
+                for (int c = 0; c < COLUMNS; c++) {
+                    columns[c] = Arrays.copyOf(columns[c], rows * 2);
+                }
+                nulls = Arrays.copyOf(nulls, rows * 2);
+            }
+            nulls[rows] = 0;
+            return rows++;
+        }
+    }
+
+    /**
+     * Interns byte ranges as Strings without creating a String to look one up.
+     */
+    static final class Dictionary
+    {
+        private final List<String> values = new ArrayList<>();
+        private final List<byte[]> keys = new ArrayList<>();
+        private int[] slots = new int[256]; // id + 1, 0 for an empty slot
+
+        int intern(byte[] b, int start, int end) {
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + b[i];
+            }
+            int mask = slots.length - 1;
+            for (int s = (hash ^ (hash >>> 16)) & mask; ; s = (s + 1) & mask) {
+                int id = slots[s] - 1;
+                if (id < 0) {
+                    byte[] key = Arrays.copyOfRange(b, start, end);
+                    return add(key, new String(key, StandardCharsets.UTF_8), s);
+                }
+                if (Arrays.equals(keys.get(id), 0, keys.get(id).length, b, start, end)) {
+                    return id;
+                }
+            }
+        }
+
+        // a quoted value with "" in it, decoded by the caller
+        int intern(String value) {
+            byte[] key = value.getBytes(StandardCharsets.UTF_8);
+            return intern(key, 0, key.length);
+        }
+
+        String get(int id) {
+            return values.get(id);
+        }
+
+        private int add(byte[] key, String value, int slot) {
+            int id = values.size();
+            values.add(value);
+            keys.add(key);
+            slots[slot] = id + 1;
+            if (values.size() * 2 > slots.length) {
+                rehash();
+            }
+            return id;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int id = 0; id < keys.size(); id++) {
+                byte[] key = keys.get(id);
+                int hash = 1;
+                for (byte b : key) {
+                    hash = 31 * hash + b;
+                }
+                int s = (hash ^ (hash >>> 16)) & mask;
+                while (slots[s] != 0) {
+                    s = (s + 1) & mask;
+                }
+                slots[s] = id + 1;
+            }
+        }
+    }
+
+    private final int threads;
+    private final int batchSize;
+
+    public FlightLoader(int threads, int batchSize)
+    {
+        this.threads = threads;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Parses {@code file} with all processors and returns its non-canceled flights.
+     */
+    public static FlightStore loadStore(Path file) throws IOException
+    {
+        FlightLoader loader = new FlightLoader(Runtime.getRuntime().availableProcessors(), 0);
+        return toStore(loader.parse(file));
+    }
+
+    /**
+     * Parses the chunks of {@code file} in parallel.
+     *
+     * @return the chunks in file order
+     */
+    public List<Chunk> parse(Path file) throws IOException
+    {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = ch.size();
+            // more chunks than threads, so a slow chunk does not hold up the others
+            long chunkSize = Math.max(1 << 20, size / (threads * 4L) + 1);
+            chunkSize = Math.min(chunkSize, 1 << 26); // each is copied into an array to parse
+            List<long[]> bounds = new ArrayList<>();
+            long start = 0;
+            while (start < size) {
+                long end = lineEnd(ch, Math.min(size, start + chunkSize), size);
+                bounds.add(new long[] {start, end});
+                start = end;
+            }
+
+            List<Callable<Chunk>> tasks = new ArrayList<>();
+            for (long[] b : bounds) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, b[0], b[1] - b[0]);
+                tasks.add(() -> parseChunk(file, buf, b[0]));
+            }
+            return run(tasks);
+        }
+    }
+
+    /**
+     * Inserts the rows of {@code chunks} into the Flights table, one chunk per task and one
+     * connection per thread.
+     */
+    public void insert(ConnectionPool pool, List<Chunk> chunks) throws IOException
+    {
+        List<Callable<Chunk>> tasks = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            tasks.add(() -> {
+                ConnectionPool.PooledConnection pc = pool.borrow();
+                boolean broken = true;
+                try {
+                    insertChunk(pc.connection(), chunk);
+                    broken = false;
+                } finally {
+                    pool.release(pc, broken);
+                }
+                return chunk;
+            });
+        }
+        run(tasks);
+    }
+
+    /**
+     * @return a store of the non-canceled rows of {@code chunks}, in file order
+     */
+    public static FlightStore toStore(List<Chunk> chunks)
+    {
+        FlightStore.Builder b = new FlightStore.Builder();
+        for (Chunk chunk : chunks) {
+            // chunk dictionary ids -> store ids, -1 until first used
+            int[] carriers = new int[chunk.strings.values.size()];
+            int[] cities = new int[carriers.length];
+            Arrays.fill(carriers, -1);
+            Arrays.fill(cities, -1);
+            int[][] c = chunk.columns;
+            for (int row = 0; row < chunk.rows; row++) {
+                if (c[CANCELED][row] != 0) {
+                    continue;
+                }
+                int carrier = c[CARRIER][row];
+                int origin = c[ORIGIN][row];
+                int dest = c[DEST][row];
+                // an empty field is a NULL, as FlightStore.load reads it through JDBC
+                int carrierId = carrier == NULL_STRING ? b.carrierId(null) : carriers[carrier];
+                if (carrierId < 0) {
+                    carrierId = carriers[carrier] = b.carrierId(chunk.strings.get(carrier));
+                }
+                int originId = origin == NULL_STRING ? b.cityId(null) : cities[origin];
+                if (originId < 0) {
+                    originId = cities[origin] = b.cityId(chunk.strings.get(origin));
+                }
+                int destId = dest == NULL_STRING ? b.cityId(null) : cities[dest];
+                if (destId < 0) {
+                    destId = cities[dest] = b.cityId(chunk.strings.get(dest));
+                }
+                b.add(c[FID][row], c[DAY][row], carrierId, c[NUMBER][row], originId, destId,
+                      c[TIME][row], c[CAPACITY][row], c[PRICE][row]);
+            }
+        }
+        return b.build();
+    }
+
+    private void insertChunk(Connection conn, Chunk chunk) throws SQLException
+    {
+        conn.setAutoCommit(false);
+        PreparedStatement ps = conn.prepareStatement(INSERT_FLIGHT);
+        try {
+            int[][] c = chunk.columns;
+            int pending = 0;
+            for (int row = 0; row < chunk.rows; row++) {
+                int nulls = chunk.nulls[row];
+                for (int col = 0; col < COLUMNS; col++) {
+                    if ((nulls & (1 << col)) != 0) {
+                        ps.setNull(col + 1, TEXT[col] ? Types.VARCHAR : Types.INTEGER);
+                    } else if (TEXT[col]) {
+                        ps.setString(col + 1, chunk.strings.get(c[col][row]));
+                    } else {
+                        ps.setInt(col + 1, c[col][row]);
+                    }
+                }
+                ps.addBatch();
+                if (++pending == batchSize) {
+                    ps.executeBatch();
+                    conn.commit();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                ps.executeBatch();
+                conn.commit();
+            }
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException e1) {}
+            throw e;
+        } finally {
+            ps.close();
+            conn.setAutoCommit(true);
+        }
+    }
+
+    // the offset just after the line end at or after from
+    private static long lineEnd(FileChannel ch, long from, long size) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long p = from;
+        while (p < size) {
+            buf.clear();
+            int n = ch.read(buf, p);
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    return p + i + 1;
+                }
+            }
+            p += n;
+        }
+        return size;
+    }
+
+    private static Chunk parseChunk(Path file, ByteBuffer buf, long offset) throws IOException
+    {
+        // parsing from an array is several times faster than through the buffer
+        byte[] b = new byte[buf.limit()];
+        buf.get(0, b);
+        Chunk chunk = new Chunk();
+        int[] fields = new int[2 * COLUMNS]; // start and end of each field
+        int p = 0;
+        while (p < b.length) {
+            int lineStart = p;
+            int lineEnd = p;
+            while (lineEnd < b.length && b[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            p = lineEnd + 1;
+            if (lineEnd > lineStart && b[lineEnd - 1] == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd == lineStart) {
+                continue;
+            }
+            int escapes = split(b, lineStart, lineEnd, fields);
+            if (escapes < 0) {
+                throw new IOException(file + " at byte " + (offset + lineStart) + ": expected " + COLUMNS + " columns");
+            }
+            if (offset == 0 && lineStart == 0 && !isNumber(b, fields[2 * FID], fields[2 * FID + 1])) {
+                continue; // header
+            }
+            int column = addRow(chunk, b, fields, escapes);
+            if (column >= 0) {
+                throw new IOException(file + " at byte " + (offset + lineStart) + ": column " + (column + 1) + " is not a number");
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Finds the fields of one line, without their quotes.
+     *
+     * @return a bit for every quoted field with "" in it, -1 if there are too few fields
+     */
+    private static int split(byte[] b, int lineStart, int lineEnd, int[] fields)
+    {
+        int escapes = 0;
+        int i = lineStart;
+        for (int field = 0; field < COLUMNS; field++) {
+            if (i > lineEnd) {
+                return -1;
+            }
+            if (i < lineEnd && b[i] == '"') {
+                fields[2 * field] = ++i;
+                while (i < lineEnd) {
+                    if (b[i] == '"') {
+                        if (i + 1 < lineEnd && b[i + 1] == '"') {
+                            escapes |= 1 << field;
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                fields[2 * field + 1] = i;
+                while (i < lineEnd && b[i] != ',') {
+                    i++;
+                }
+            } else {
+                fields[2 * field] = i;
+                while (i < lineEnd && b[i] != ',') {
+                    i++;
+                }
+                fields[2 * field + 1] = i;
+            }
+            i++; // the comma
+        }
+        return escapes;
+    }
+
+    /**
+     * @return -1, or the column that should have been a number and is not
+     */
+    private static int addRow(Chunk chunk, byte[] b, int[] fields, int escapes)
+    {
+        int row = chunk.newRow();
+        for (int col = 0; col < COLUMNS; col++) {
+            int s = fields[2 * col];
+            int e = fields[2 * col + 1];
+            if (TEXT[col]) {
+                if (s == e) {
+                    chunk.nulls[row] |= 1 << col;
+                    chunk.columns[col][row] = NULL_STRING;
+                } else if ((escapes & (1 << col)) != 0) {
+                    String value = new String(b, s, e - s, StandardCharsets.UTF_8);
+                    chunk.columns[col][row] = chunk.strings.intern(value.replace("\"\"", "\""));
+                } else {
+                    chunk.columns[col][row] = chunk.strings.intern(b, s, e);
+                }
+                continue;
+            }
+            while (s < e && b[s] == ' ') {
+                s++;
+            }
+            while (e > s && b[e - 1] == ' ') {
+                e--;
+            }
+            if (s == e) {
+                chunk.nulls[row] |= 1 << col; // 0 in the column, as getInt reads a NULL
+                continue;
+            }
+            if (!isNumber(b, s, e)) {
+                return col;
+            }
+            chunk.columns[col][row] = parseInt(b, s, e);
+        }
+        return -1;
+    }
+
+    private static boolean isNumber(byte[] b, int start, int end)
+    {
+        if (start < end && b[start] == '-') {
+            start++;
+        }
+        if (start == end || end - start > 10) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (b[i] < '0' || b[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseInt(byte[] b, int start, int end)
+    {
+        boolean negative = b[start] == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end; i++) {
+            value = value * 10 + (b[i] - '0');
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    private <T> List<T> run(List<Callable<T>> tasks) throws IOException
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, tasks.size())));
+        try {
+            List<Future<T>> futures = new ArrayList<>();
+            for (Callable<T> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            List<T> results = new ArrayList<>();
+            for (Future<T> f : futures) {
+                results.add(f.get());
+            }
+            return results;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String rate(long rows, long nanos)
+    {
+        return String.format("%d rows in %.2f s, %.0f rows/s", rows, nanos / 1e9, rows * 1e9 / Math.max(1, nanos));
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int batchSize = 5000;
+        boolean db = false;
+        boolean replace = false;
+        Path snapshot = null;
+        Path file = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads")) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-batch")) {
+                batchSize = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-db")) {
+                db = true;
+            } else if (args[i].equals("-replace")) {
+                replace = true;
+            } else if (args[i].equals("-snapshot")) {
+                snapshot = Paths.get(args[++i]);
+            } else {
+                file = Paths.get(args[i]);
+            }
+        }
+        if (file == null || (!db && snapshot == null)) {
+            System.err.println("Usage: java FlightLoader [-threads n] [-batch n] [-replace] [-db] [-snapshot file] flights.csv");
+            System.exit(1);
+        }
+
+        FlightLoader loader = new FlightLoader(threads, batchSize);
+        long start = System.nanoTime();
+        List<Chunk> chunks = loader.parse(file);
+        long rows = 0;
+        for (Chunk chunk : chunks) {
+            rows += chunk.rows();
+        }
+        System.out.println("Parsed " + rate(rows, System.nanoTime() - start) + " (" + chunks.size() + " chunks, " + threads + " threads)");
+
+        if (db) {
+            Properties configProps = new Properties();
+            configProps.load(new FileInputStream(FlightService.DBCONFIG_FILENAME));
+            configProps.setProperty("flightservice.pool_size", Integer.toString(threads));
+            ConnectionPool pool = ConnectionPool.shared(configProps);
+            try {
+                if (replace) {
+                    ConnectionPool.PooledConnection pc = pool.borrow();
+                    try {
+                        pc.connection().createStatement().executeUpdate(CLEAR_FLIGHTS);
+                    } finally {
+                        pool.release(pc, false);
+                    }
+                }
+                start = System.nanoTime();
+                loader.insert(pool, chunks);
+                System.out.println("Inserted " + rate(rows, System.nanoTime() - start) + " (batches of " + batchSize + ")");
+            } finally {
+                ConnectionPool.shutdownAll();
+            }
+        }
+
+        if (snapshot != null) {
+            start = System.nanoTime();
+            FlightStore store = toStore(chunks);
+            store.writeSnapshot(snapshot);
+            System.out.println("Wrote " + rate(store.size(), System.nanoTime() - start) + " of non-canceled flights to " + snapshot);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCP front-end of the flight service.
+ *
+ * Usage: java FlightServer [port]
+ *
+ * Every client connection is one session with its own {@link Query}, so login state and the
+ * itineraries of the last search are per connection, while the connection pool, route index
+ * and caches are shared by all sessions of the JVM. Commands are executed with
+ * {@link FlightService#execute}, so they behave exactly as in the interactive menu.
+ *
+ * Protocol (UTF-8, one command per line): the server answers every command with the lines of
+ * its response followed by a line holding a single ".". Response lines that start with "."
+ * are sent with one more "." in front. A response that does not end with a newline is sent
+ * as if it did. "quit" is answered with "Goodbye" and closes the connection.
+ *
+ * Clients may pipeline: commands that arrive before the previous responses were sent are
+ * executed as a batch (consecutive searches share one read transaction) and their responses
+ * are flushed together.
+ *
+ * Machine clients can use a compact binary framing instead, by sending {@link #BINARY_MAGIC}
+ * as the first byte of the connection. Every request is then a type byte, an int length and
+ * that many bytes of UTF-8 text; every response is an int length and the exact UTF-8 bytes of
+ * the response (ints are big-endian). The text of a {@link #FRAME_COMMAND} is one command. The
+ * text of a {@link #FRAME_BATCH} is commands separated by newlines, executed in order as a
+ * batch; it is answered with one response per command and then {@link #END_OF_BATCH} in
+ * place of a length.
+ *
+ * Sessions run on virtual threads when the JVM has them, and on a cached thread pool
+ * otherwise.
+ */
+public class FlightServer
+{
+    public static final String TERMINATOR = ".";
+
+    // cannot start a text command: never valid UTF-8 as a first byte
+    public static final int BINARY_MAGIC = 0xFB;
+    public static final byte FRAME_COMMAND = 'C';
+    public static final byte FRAME_BATCH = 'B';
+    public static final int END_OF_BATCH = -1;
+    static final int MAX_FRAME = 1 << 20;
+
+    private final int port;
+    // dbconn.properties, loaded once and shared by the sessions
+    private final Properties configProps;
+    private final ExecutorService sessions;
+    private volatile ServerSocket serverSocket;
+
+    public FlightServer(int port, Properties configProps)
+    {
+        this.port = port;
+        this.configProps = configProps;
+        this.sessions = newSessionExecutor();
+    }
+
+    /**
+     * Accepts connections until {@link #stop()} is called.
+     */
+    public void serve() throws Exception
+    {
+        /* warm the shared pool, index and caches before the first client arrives */
+        Query warmup = new Query(configProps);
+        warmup.openConnection();
+        warmup.prepareStatements();
+        warmup.closeConnection();
+
+        serverSocket = new ServerSocket(port, 1024);
+        System.out.println("Flight service listening on port " + serverSocket.getLocalPort());
+        try {
+            while (!serverSocket.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        break;
+                    }
+                    throw e;
+                }
+                sessions.execute(new Runnable() {
+                    public void run() {
+                        session(socket);
+                    }
+                });
+            }
+        } finally {
+            sessions.shutdown();
+            sessions.awaitTermination(30, TimeUnit.SECONDS);
+        }
+    }
+
+    public void stop() throws IOException
+    {
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+    }
+
+    // runs one client connection to completion
+    private void session(Socket socket)
+    {
+        Query q = new Query(configProps);
+        try {
+            socket.setTcpNoDelay(true);
+            BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            q.openConnection();
+            in.mark(1);
+            if (in.read() == BINARY_MAGIC) {
+                binarySession(q, new DataInputStream(in), new DataOutputStream(out));
+            } else {
+                in.reset();
+                textSession(q, new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)),
+                            new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+            }
+        } catch (Exception e) {
+            // the client went away or the session could not be opened; nothing to answer
+        } finally {
+            try {
+                q.closeConnection();
+            } catch (Exception e) {}
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    // commands a client pipelines are executed as one batch and answered with one flush
+    private void textSession(Query q, BufferedReader in, Writer out) throws IOException
+    {
+        FlightService.Batch batch = new FlightService.Batch(q);
+        try {
+            String command;
+            while ((command = in.readLine()) != null) {
+                String response = batch.execute(command);
+                writeResponse(out, response);
+                if (response.equals("Goodbye\n")) {
+                    break;
+                }
+                if (!in.ready()) {
+                    batch.end();
+                    out.flush();
+                }
+            }
+        } finally {
+            batch.end();
+            out.flush();
+        }
+    }
+
+    private void binarySession(Query q, DataInputStream in, DataOutputStream out) throws IOException
+    {
+        byte[] frame = new byte[256];
+        int type;
+        while ((type = in.read()) >= 0) {
+            int length = in.readInt();
+            if ((type != FRAME_COMMAND && type != FRAME_BATCH) || length < 0 || length > MAX_FRAME) {
+                throw new IOException("bad frame");
+            }
+            if (length > frame.length) {
+                frame = new byte[Math.max(length, 2 * frame.length)];
+            }
+            in.readFully(frame, 0, length);
+            String text = new String(frame, 0, length, StandardCharsets.UTF_8);
+            String response;
+            if (type == FRAME_BATCH) {
+                response = batch(q, text, out);
+            } else {
+                response = FlightService.execute(q, text);
+                writeFrame(out, response);
+            }
+            out.flush();
+            if (response.equals("Goodbye\n")) {
+                break;
+            }
+        }
+    }
+
+    // answers every command of a batch frame with a frame, then sends the end-of-batch frame
+    private String batch(Query q, String commands, DataOutputStream out) throws IOException
+    {
+        FlightService.Batch batch = new FlightService.Batch(q);
+        String response = "";
+        try {
+            int start = 0;
+            while (start < commands.length()) {
+                int end = commands.indexOf('\n', start);
+                if (end < 0) {
+                    end = commands.length();
+                }
+                response = batch.execute(commands.substring(start, end));
+                writeFrame(out, response);
+                if (response.equals("Goodbye\n")) {
+                    break;
+                }
+                start = end + 1;
+            }
+        } finally {
+            batch.end();
+        }
+        out.writeInt(END_OF_BATCH);
+        return response;
+    }
+
+    static void writeFrame(DataOutputStream out, String s) throws IOException
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Writes one response in the framing described above.
+     */
+    static void writeResponse(Writer out, String response) throws IOException
+    {
+        int start = 0;
+        while (start < response.length()) {
+            int end = response.indexOf('\n', start);
+            if (end < 0) {
+                end = response.length();
+            }
+            if (response.charAt(start) == '.') {
+                out.write('.');
+            }
+            out.write(response, start, end - start);
+            out.write('\n');
+            start = end + 1;
+        }
+        out.write(TERMINATOR);
+        out.write('\n');
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() is only there on Java 21 and later
+    static ExecutorService newSessionExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Properties configProps = new Properties();
+        try (FileInputStream in = new FileInputStream(FlightService.DBCONFIG_FILENAME)) {
+            configProps.load(in);
+        }
+        int port = args.length > 0 ? Integer.parseInt(args[0])
+                                   : Integer.parseInt(configProps.getProperty("flightservice.server_port", "9414").trim());
+
+        final FlightServer server = new FlightServer(port, configProps);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    server.stop();
+                } catch (IOException e) {}
+            }
+        });
+        try {
+            server.serve();
+        } finally {
+            ConnectionPool.shutdownAll();
+        }
+    }
+}
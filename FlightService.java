@@ -1,13 +1,15 @@
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 public class FlightService
 {
-  public static final String DBCONFIG_FILENAME = "dbconn.properties";
+  // override with -Ddbconn=file, e.g. -Ddbconn=test/memory.properties
+  public static final String DBCONFIG_FILENAME = System.getProperty("dbconn", "dbconn.properties");
 
   public static void usage()
   {
@@ -26,143 +28,201 @@ public class FlightService
 
   public static String[] tokenize(String command)
   {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find())
-    {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
-    }
-    return tokens.toArray(new String[0]);
+    return new CommandLine().parse(command).toArray();
   }
 
-  public static String execute (Query q, String command)
+  /* a command's verb, number of tokens (-1 for any), usage error and what it runs */
+  interface Handler
   {
-    String response;
+    String run(Query q, CommandLine c);
+  }
 
-    String[] tokens = tokenize(command.trim());
-    if (tokens.length == 0)
-      response = "Please enter a command";
+  static final class Command
+  {
+    final String verb;
+    final int arity;
+    final String usage;
+    final Handler handler;
+    final Metrics.Operation metrics;
 
-    else if (tokens[0].equals("login"))
+    Command (String verb, int arity, String usage, Handler handler)
     {
-      if (tokens.length == 3)
-      {
-        /* authenticate the user */
-        String username = tokens[1];
-        String password = tokens[2];
-        response = q.transaction_login(username, password);
-      }
-      else
-        response = "Error: Please provide a username and password";
+      this.verb = verb;
+      this.arity = arity;
+      this.usage = usage;
+      this.handler = handler;
+      this.metrics = Metrics.command(verb);
     }
+  }
 
-    else if (tokens[0].equals("create"))
-    {
-      /* create a new customer */
-      if (tokens.length == 4)
-      {
-        String username = tokens[1];
-        String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
-        response = q.transaction_createCustomer(username, password, initAmount);
-      }
-      else
-        response = "Error: Please provide a username, password, and initial amount in the account";
-    }
+  static final String PARSE_ERROR = "Failed to parse integer";
+
+  static final Command[] COMMANDS = {
+    /* authenticate the user */
+    new Command("login", 3, "Error: Please provide a username and password",
+                (q, c) -> q.transaction_login(c.get(1), c.get(2))),
+
+    /* create a new customer */
+    new Command("create", 4, "Error: Please provide a username, password, and initial amount in the account",
+                (q, c) -> {
+                  long initAmount = c.parseInt(3);
+                  if (initAmount == CommandLine.NOT_AN_INT)
+                    return PARSE_ERROR;
+                  return q.transaction_createCustomer(c.get(1), c.get(2), (int) initAmount);
+                }),
+
+    /* search for flights */
+    new Command("search", 6, "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>",
+                (q, c) -> {
+                  long day = c.parseInt(4);
+                  long count = c.parseInt(5);
+                  if (day == CommandLine.NOT_AN_INT || count == CommandLine.NOT_AN_INT)
+                    return PARSE_ERROR;
+                  return q.transaction_search(c.get(1), c.get(2), c.is(3, "1"), (int) day, (int) count);
+                }),
+
+    /* book a flight ticket */
+    new Command("book", 2, "Error: Please provide an itinerary_id",
+                (q, c) -> {
+                  long itineraryId = c.parseInt(1);
+                  return itineraryId == CommandLine.NOT_AN_INT ? PARSE_ERROR : q.transaction_book((int) itineraryId);
+                }),
+
+    /* list all reservations */
+    new Command("reservations", -1, null,
+                (q, c) -> q.transaction_reservations()),
+
+    /* pay for an unpaid reservation */
+    new Command("pay", 2, "Error: Please provide a reservation_id",
+                (q, c) -> {
+                  long reservationId = c.parseInt(1);
+                  return reservationId == CommandLine.NOT_AN_INT ? PARSE_ERROR : q.transaction_pay((int) reservationId);
+                }),
+
+    /* cancel a reservation */
+    new Command("cancel", 2, "Error: Please provide a reservation_id",
+                (q, c) -> {
+                  long reservationId = c.parseInt(1);
+                  return reservationId == CommandLine.NOT_AN_INT ? PARSE_ERROR : q.transaction_cancel((int) reservationId);
+                }),
+
+    new Command("quit", -1, null,
+                (q, c) -> "Goodbye\n"),
+  };
+
+  /* every thread (every session of the server) parses its commands into one CommandLine */
+  private static final ThreadLocal<CommandLine> LINE = ThreadLocal.withInitial(CommandLine::new);
+
+  public static String execute (Query q, String command)
+  {
+    return execute(q, LINE.get().parse(command));
+  }
+
+  public static String execute (Query q, CommandLine c)
+  {
+    if (c.count() == 0)
+      return "Please enter a command";
 
-    else if (tokens[0].equals("search"))
+    for (Command command : COMMANDS)
     {
-				/* search for flights */
-      if (tokens.length == 6)
+      if (c.is(0, command.verb))
       {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
-        Integer day;
-        Integer count;
+        if (command.arity >= 0 && c.count() != command.arity)
+          return command.usage;
+        /* times the transaction and counts the statements it runs */
+        Metrics.Call call = command.metrics.begin();
         try
         {
-          day = Integer.valueOf(tokens[4]);
-          count = Integer.valueOf(tokens[5]);
-          //System.out.println("Searching for flights");
-          //response = q.transaction_search_unsafe(originCity, destinationCity, direct, day, count);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
+          return command.handler.run(q, c);
+        }
+        finally
+        {
+          call.end();
         }
-        catch (NumberFormatException e) { response = "Failed to parse integer"; }
       }
-      else
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
     }
 
-    else if (tokens[0].equals("book"))
+    return "Error: unrecognized command '" + c.get(0) + "'";
+  }
+
+  /**
+   * Executes a sequence of commands on one session, in order. Consecutive searches share
+   * one read transaction (see {@link Query#beginSearchBatch()}), which is committed by the
+   * first other command or by {@link #end()}. Call end() before waiting for more commands.
+   */
+  public static final class Batch
+  {
+    private final Query q;
+    private boolean searching;
+
+    public Batch (Query q)
     {
-				/* book a flight ticket */
-      if (tokens.length == 2)
-      {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Booking itinerary.");
-        response = q.transaction_book(itinerary_id);
-      }
-      else
-        response = "Error: Please provide an itinerary_id";
+      this.q = q;
     }
 
-    else if (tokens[0].equals("reservations"))
+    public String execute (String command)
     {
-				/* list all reservations */
-      response = q.transaction_reservations();
+      CommandLine c = LINE.get().parse(command);
+      boolean search = c.count() > 0 && c.is(0, "search");
+      if (search && !searching)
+        q.beginSearchBatch();
+      else if (!search)
+        end();
+      searching = search;
+      return FlightService.execute(q, c);
     }
 
-    else if (tokens[0].equals("pay"))
+    public void end ()
     {
-      /* pay for an unpaid reservation */
-      if (tokens.length == 2)
+      if (searching)
       {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Paying reservation.");
-        response = q.transaction_pay(reservation_id);
+        q.endSearchBatch();
+        searching = false;
       }
-      else
-        response = "Error: Please provide a reservation_id";
     }
+  }
 
-    else if (tokens[0].equals("cancel"))
+  /* runs a script of commands, one per line, and prints the responses in order */
+  public static void script(Query q, String filename) throws Exception
+  {
+    BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8));
+    /* buffered rather than flushed per response as System.out would */
+    Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+    Batch batch = new Batch(q);
+    try
     {
-				/* cancel a reservation */
-      if (tokens.length == 2)
+      String command;
+      while ((command = r.readLine()) != null)
       {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Canceling reservation.");
-        response = q.transaction_cancel(reservation_id);
+        String response = batch.execute(command);
+        out.write(response);
+        if (response.equals("Goodbye\n"))
+          break;
       }
-      else
-        response = "Error: Please provide a reservation_id";
     }
-
-    else if (tokens[0].equals("quit"))
-      response = "Goodbye\n";
-
-    else
-      response = "Error: unrecognized command '" + tokens[0] + "'";
-
-    return response;
+    finally
+    {
+      batch.end();
+      r.close();
+      out.flush();
+    }
   }
 
   /* REPL (Read-Execute-Print-Loop) */
   public static void menu(Query q) throws Exception
   {
+    /* one reader for the whole session; a new one per command would drop whatever the
+       previous one had already buffered */
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
     while (true)
     {
       usage();
 
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
       System.out.print("> ");
 
       String command = r.readLine();
+      if (command == null)
+        break;
       String response = execute(q, command);
       System.out.print(response);
 
@@ -177,8 +237,12 @@ public class FlightService
     Query q = new Query(DBCONFIG_FILENAME);
     q.openConnection();
     q.prepareStatements();
-    menu(q); /* menu(...) does the real work */
+    if (args.length > 0)
+      script(q, args[0]); /* java FlightService <script file> */
+    else
+      menu(q); /* menu(...) does the real work */
     q.closeConnection();
+    ConnectionPool.shutdownAll();
   }
 
 }
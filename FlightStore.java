@@ -0,0 +1,328 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar store of the non-canceled flights.
+ *
+ * Every flight is a row number. fid, day, time, capacity, price and flight number are kept
+ * in primitive int columns; carriers and cities are dictionary-encoded into int ids. A store
+ * can be written to a snapshot file and mapped back into memory, so a restarted service does
+ * not have to read the Flights table again. {@code Query.Flight} objects are only created by
+ * {@link #flight(int)}, for rows that are actually rendered.
+ *
+ * Snapshot layout (big-endian):
+ *   int magic, int version, int rows, int cities, int carriers,
+ *   cities then carriers as (int length, UTF-8 bytes), padding to a multiple of 4,
+ *   then the columns fid, day, time, capacity, price, number, carrier, origin, dest.
+ */
+public class FlightStore
+{
+    private static final String LOAD_FLIGHTS =
+        "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price " +
+        "FROM Flights " +
+        "WHERE canceled = 0";
+
+    private static final int MAGIC = 0x464C5354; // "FLST"
+    private static final int VERSION = 1;
+    private static final int COLUMNS = 9;
+
+    private final int size;
+    private final IntBuffer fid;
+    private final IntBuffer day;
+    private final IntBuffer time;
+    private final IntBuffer capacity;
+    private final IntBuffer price;
+    private final IntBuffer number;
+    private final IntBuffer carrier;
+    private final IntBuffer origin;
+    private final IntBuffer dest;
+    private final String[] cities;
+    private final String[] carriers;
+
+    private FlightStore(int size, IntBuffer[] columns, String[] cities, String[] carriers)
+    {
+        this.size = size;
+        this.fid = columns[0];
+        this.day = columns[1];
+        this.time = columns[2];
+        this.capacity = columns[3];
+        this.price = columns[4];
+        this.number = columns[5];
+        this.carrier = columns[6];
+        this.origin = columns[7];
+        this.dest = columns[8];
+        this.cities = cities;
+        this.carriers = carriers;
+    }
+
+    /**
+     * Accumulates rows in growable int columns and interns cities and carriers.
+     */
+    public static class Builder
+    {
+        private int size;
+        private int[][] columns = new int[COLUMNS][1024];
+        private final List<String> cities = new ArrayList<>();
+        private final Map<String, Integer> cityIds = new HashMap<>();
+        private final List<String> carriers = new ArrayList<>();
+        private final Map<String, Integer> carrierIds = new HashMap<>();
+
+        public Builder add(int fid, int day, String carrierId, int flightNum, String originCity, String destCity, int time, int capacity, int price)
+        {
+            return add(fid, day, carrierId(carrierId), flightNum, cityId(originCity), cityId(destCity), time, capacity, price);
+        }
+
+        /**
+         * Adds a row whose carrier and cities were already interned with {@link #carrierId}
+         * and {@link #cityId}.
+         */
+        public Builder add(int fid, int day, int carrierId, int flightNum, int originId, int destId, int time, int capacity, int price)
+        {
+            if (size == columns[0].length) {
+                for (int c = 0; c < COLUMNS; c++) {
+                    columns[c] = Arrays.copyOf(columns[c], size * 2);
+                }
+            }
+            columns[0][size] = fid;
+            columns[1][size] = day;
+            columns[2][size] = time;
+            columns[3][size] = capacity;
+            columns[4][size] = price;
+            columns[5][size] = flightNum;
+            columns[6][size] = carrierId;
+            columns[7][size] = originId;
+            columns[8][size] = destId;
+            size++;
+            return this;
+        }
+
+        public int cityId(String city)
+        {
+            return intern(city, cities, cityIds);
+        }
+
+        public int carrierId(String carrier)
+        {
+            return intern(carrier, carriers, carrierIds);
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        public FlightStore build()
+        {
+            IntBuffer[] buffers = new IntBuffer[COLUMNS];
+            for (int c = 0; c < COLUMNS; c++) {
+                buffers[c] = IntBuffer.wrap(Arrays.copyOf(columns[c], size));
+            }
+            return new FlightStore(size, buffers, cities.toArray(new String[0]), carriers.toArray(new String[0]));
+        }
+
+        private static int intern(String s, List<String> values, Map<String, Integer> ids)
+        {
+            Integer id = ids.get(s);
+            if (id == null) {
+                id = values.size();
+                values.add(s);
+                ids.put(s, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Reads the non-canceled flights from the database.
+     */
+    public static FlightStore load(Connection conn) throws SQLException
+    {
+        Builder b = new Builder();
+        PreparedStatement ps = conn.prepareStatement(LOAD_FLIGHTS);
+        ps.setFetchSize(10000);
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+            b.add(rs.getInt("fid"), rs.getInt("day_of_month"), rs.getString("carrier_id"), rs.getInt("flight_num"), rs.getString("origin_city"), rs.getString("dest_city"), rs.getInt("actual_time"), rs.getInt("capacity"), rs.getInt("price"));
+        }
+        rs.close();
+        ps.close();
+        return b.build();
+    }
+
+    /**
+     * Reads the non-canceled flights from a CSV export of the Flights table: one row per line,
+     * columns in table order (fid, month_id, day_of_month, day_of_week_id, carrier_id,
+     * flight_num, origin_city, origin_state, dest_city, dest_state, departure_delay, taxi_out,
+     * arrival_delay, canceled, actual_time, distance, capacity, price). Fields may be quoted;
+     * an empty number reads as 0, as a NULL does through JDBC. The file is parsed in parallel
+     * by {@link FlightLoader}.
+     */
+    public static FlightStore loadCsv(Path file) throws IOException
+    {
+        return FlightLoader.loadStore(file);
+    }
+
+    /**
+     * Maps a snapshot written by {@link #writeSnapshot(Path)}. Only the dictionaries are
+     * decoded; the columns are read straight from the mapped file, except for time, capacity
+     * and price, which are copied to the heap so that {@link #set} can change them.
+     */
+    public static FlightStore mapSnapshot(Path file) throws IOException
+    {
+        MappedByteBuffer buf;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+        if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            throw new IOException(file + " is not a flight snapshot");
+        }
+        int size = buf.getInt();
+        String[] cities = new String[buf.getInt()];
+        String[] carriers = new String[buf.getInt()];
+        readStrings(buf, cities);
+        readStrings(buf, carriers);
+        buf.position((buf.position() + 3) & ~3);
+
+        IntBuffer[] columns = new IntBuffer[COLUMNS];
+        for (int c = 0; c < COLUMNS; c++) {
+            ByteBuffer column = buf.slice();
+            column.limit(size * 4);
+            columns[c] = column.asIntBuffer();
+            buf.position(buf.position() + size * 4);
+        }
+        for (int c = 2; c <= 4; c++) { // time, capacity, price
+            int[] values = new int[size];
+            columns[c].get(values);
+            columns[c] = IntBuffer.wrap(values);
+        }
+        return new FlightStore(size, columns, cities, carriers);
+    }
+
+    /**
+     * Writes the store to {@code file}, replacing it atomically.
+     */
+    public void writeSnapshot(Path file) throws IOException
+    {
+        byte[][] cityBytes = encode(cities);
+        byte[][] carrierBytes = encode(carriers);
+        long header = 5 * 4 + length(cityBytes) + length(carrierBytes);
+        long total = ((header + 3) & ~3) + (long) COLUMNS * size * 4;
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, total);
+            buf.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(cities.length).putInt(carriers.length);
+            writeStrings(buf, cityBytes);
+            writeStrings(buf, carrierBytes);
+            buf.position((buf.position() + 3) & ~3);
+            IntBuffer[] columns = {fid, day, time, capacity, price, number, carrier, origin, dest};
+            for (IntBuffer column : columns) {
+                for (int row = 0; row < size; row++) {
+                    buf.putInt(column.get(row));
+                }
+            }
+            buf.force();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int size() { return size; }
+
+    public int fid(int row) { return fid.get(row); }
+
+    public int day(int row) { return day.get(row); }
+
+    public int time(int row) { return time.get(row); }
+
+    public int capacity(int row) { return capacity.get(row); }
+
+    public int price(int row) { return price.get(row); }
+
+    public int originId(int row) { return origin.get(row); }
+
+    public int destId(int row) { return dest.get(row); }
+
+    public int cityCount() { return cities.length; }
+
+    /**
+     * Changes the time, capacity and price of one row, in memory only; see
+     * {@link RouteIndex#change}.
+     */
+    public void set(int row, int time, int capacity, int price)
+    {
+        this.time.put(row, time);
+        this.capacity.put(row, capacity);
+        this.price.put(row, price);
+    }
+
+    public String city(int id) { return cities[id]; }
+
+    /**
+     * Creates the {@code Query.Flight} for one row.
+     */
+    public Query.Flight flight(int row)
+    {
+        return new Query.Flight(fid.get(row), day.get(row), carriers[carrier.get(row)], Integer.toString(number.get(row)),
+                                cities[origin.get(row)], cities[dest.get(row)], time.get(row), capacity.get(row), price.get(row));
+    }
+
+    private static byte[][] encode(String[] values)
+    {
+        byte[][] bytes = new byte[values.length][];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = values[i] == null ? null : values[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    private static long length(byte[][] values)
+    {
+        long length = 0;
+        for (byte[] b : values) {
+            length += 4 + (b == null ? 0 : b.length);
+        }
+        return length;
+    }
+
+    // a length of -1 stands for a NULL value
+    private static void writeStrings(ByteBuffer buf, byte[][] values)
+    {
+        for (byte[] b : values) {
+            if (b == null) {
+                buf.putInt(-1);
+            } else {
+                buf.putInt(b.length).put(b);
+            }
+        }
+    }
+
+    private static void readStrings(ByteBuffer buf, String[] values)
+    {
+        for (int i = 0; i < values.length; i++) {
+            int length = buf.getInt();
+            if (length >= 0) {
+                byte[] b = new byte[length];
+                buf.get(b);
+                values[i] = new String(b, StandardCharsets.UTF_8);
+            }
+        }
+    }
+}
@@ -4,8 +4,6 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -52,101 +50,48 @@ public class Grader
     public List<String> results () { return results; }
 
     @Override
-    public String call ()
+    public String call () throws Exception
     {
       StringBuffer sb = new StringBuffer();
       for (String c : cmds)
-        sb.append(FlightService.execute(q, c));
+      {
+        if (c.trim().equals(Scenario.RESTART))
+          restart();
+        else
+          sb.append(FlightService.execute(q, c));
+      }
 
       return sb.toString();
     }
 
+    // reopens the storage the way a new JVM finds it, see Scenario
+    private void restart () throws Exception
+    {
+      this.q.closeConnection();
+      InMemoryBackend.restart();
+      this.q = new Query(FlightService.DBCONFIG_FILENAME);
+      q.openConnection();
+      q.prepareStatements();
+    }
+
     public void shutdown () throws Exception
     {
       this.q.closeConnection();
     }
   }
 
-  static final String COMMENTS = "#";
-  static final String DELIMITER = "*"; // delimiter between command inputs and expected results
-  static final String SEPARATOR = "|"; // delimiter between command inputs and expected results
-
   /**
    * Parse the input test case
    * @param filename test case's path and file name
    * @return new User objects with commands to run and expected results
    * @throws Exception
+   * @see Scenario#parse(String)
    */
   static List<User> parse (String filename) throws Exception
   {
     List<User> users = new ArrayList<>();
-
-    List<String> cmds = new ArrayList<>();
-    List<String> results = new ArrayList<>();
-    String r = "";
-    boolean isCmd = true;
-
-    BufferedReader fr = new BufferedReader(new FileReader(filename));
-    String l;
-    int lineNumber = 0;
-    while ( (l = fr.readLine()) != null)
-    {
-      lineNumber++;
-      if (l.startsWith(COMMENTS))
-        continue;
-
-      else if (l.startsWith(DELIMITER))
-      {
-        if (isCmd)
-          isCmd = false;
-        else
-        {
-          results.add(r);
-          users.add(new User(cmds, results));
-          cmds = new ArrayList<>();
-          results = new ArrayList<>();
-          r = "";
-          isCmd = true;
-        }
-      }
-
-      else if (l.startsWith(SEPARATOR))
-      {
-        if (isCmd)
-          throw new Exception("input file is malformatted on line: " + lineNumber);
-        else
-        {
-          results.add(r);
-          r = "";
-        }
-      }
-
-      else
-      {
-        // remove trailing comments
-        l = l.split(COMMENTS, 2)[0];
-
-        if (isCmd)
-          cmds.add(l);
-        else
-          r = r + l + "\n";
-      }
-    }
-
-    fr.close();
-
-    // everything should be parsed by now and put into user objects
-    if (cmds.size() > 0 || r.length() > 0 || results.size() > 0)
-      throw new Exception("input file is malformatted, cmds.size()=" + cmds.size() + ", r.length()=" + r.length() + ", results.size()=" + results.size());
-
-    // check that all users have the same number of possible scenarios
-    int n = users.get(0).results().size();
-    for (int i = 1; i < users.size(); ++i)
-    {
-      int u = users.get(i).results().size();
-      if (u != n)
-        throw new Exception("user " + i + " should have " + n + " possible results rather than " + u);
-    }
+    for (Scenario.User u : Scenario.parse(filename))
+      users.add(new User(u.cmds(), u.results()));
 
     return users;
   }
@@ -0,0 +1,745 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StorageBackend} that keeps users, reservations and seat counts in the JVM, for runs
+ * without a database.
+ *
+ * All sessions share one {@link Database}. A transaction takes the database's lock on its
+ * first access to users, reservations or seat counts and holds it until it commits or rolls
+ * back, so transactions are serializable; changes are applied in place and undone from a log
+ * on rollback. Searches read the immutable flights through a {@link RouteIndex} and take no
+ * lock. A transaction that cannot get the lock within {@link #LOCK_TIMEOUT_MILLIS} fails like
+ * a SQL Server lock timeout (error 1222), which {@link TransactionRunner} retries.
+ *
+ * Data follows the rules of the tables in createTables.sql: usernames compare
+ * case-insensitively, usernames and passwords are at most 20 characters, reservation ids
+ * start at 1 and are never reused until {@link #clear()}, and a flight has at most its
+ * capacity in booked seats.
+ *
+ * The flights are mapped from flightservice.flight_snapshot if that file exists, and
+ * otherwise read from the CSV file flightservice.flights_csv (and then written to the
+ * snapshot, if one is configured).
+ *
+ * With flightservice.journal set, the data survives restarts. Every committed transaction
+ * appends its changes as one record to a {@link Journal} before it releases the lock, and
+ * waits for the record to reach the disk after releasing it, so concurrent commits share a
+ * disk flush. When the journal grows past journal_snapshot_mb, the whole database is written
+ * to a snapshot file next to it and the journal starts over. At startup the snapshot is
+ * loaded and the journal records after it are replayed.
+ *
+ * Other sessions may see a transaction's changes before its record is on disk. So when the
+ * journal cannot be written or flushed, the failure is not a rollback: the transaction that
+ * hit it fails with the outcome unknown, and every later operation fails too, until a restart
+ * recovers the data from what did reach the disk.
+ */
+public class InMemoryBackend implements StorageBackend
+{
+    static final long LOCK_TIMEOUT_MILLIS = 10000;
+    private static final int LOCK_TIMEOUT = 1222;
+    private static final int DUPLICATE_KEY = 2627;
+    private static final int TRUNCATION = 8152;
+    private static final int MAX_NAME = 20; // VARCHAR(20)
+
+    // journal records are sequences of these changes
+    private static final byte INSERT_USER = 1;
+    private static final byte UPDATE_BALANCE = 2;
+    private static final byte BOOK = 3;
+    private static final byte MARK_PAID = 4;
+    private static final byte RELEASE_SEATS = 5;
+    private static final byte DELETE_RESERVATION = 6;
+
+    private static final int SNAPSHOT_MAGIC = 0x464C5344; // "FLSD"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static Database shared;
+
+    private static final class User
+    {
+        private final String password;
+        private int balance;
+
+        private User(String password, int balance) {
+            this.password = password;
+            this.balance = balance;
+        }
+    }
+
+    private static final class Row
+    {
+        private final int rid;
+        private final String user;
+        private final Query.Flight f1;
+        private final Query.Flight f2;
+        private boolean paid;
+
+        private Row(int rid, String user, Query.Flight f1, Query.Flight f2) {
+            this.rid = rid;
+            this.user = user;
+            this.f1 = f1;
+            this.f2 = f2;
+        }
+
+        private Reservation reservation() {
+            return new Reservation(rid, paid, f1, f2);
+        }
+    }
+
+    /**
+     * The tables, shared by all sessions. Only touched while holding {@link #lock}.
+     */
+    static final class Database
+    {
+        private final FlightStore flights;
+        private final RouteIndex index;
+        private final Semaphore lock = new Semaphore(1, true);
+
+        // keys are RouteIndex.key(username)
+        private final Map<String, User> users = new HashMap<>();
+        private final Map<Integer, Row> reservations = new HashMap<>();
+        private final Map<String, TreeMap<Integer, Row>> reservationsByUser = new HashMap<>();
+        // booked seats by fid
+        private final Map<Integer, Integer> seats = new HashMap<>();
+        // like an IDENTITY column, not given back by rollbacks
+        private int nextRid = 1;
+
+        // null when the data is not kept on disk
+        private Journal journal;
+        private Path snapshotFile;
+        private long snapshotBytes;
+        // set when the journal failed, after which the memory no longer matches the disk
+        private volatile IOException failure;
+        // fid -> store row, only built to replay bookings
+        private Map<Integer, Integer> rowsByFid;
+
+        Database(FlightStore flights, int connectionDepth) {
+            this.flights = flights;
+            this.index = new RouteIndex(flights, connectionDepth);
+        }
+
+        private void insert(Row r) {
+            reservations.put(r.rid, r);
+            reservationsByUser.computeIfAbsent(r.user, k -> new TreeMap<>()).put(r.rid, r);
+        }
+
+        private void remove(Row r) {
+            reservations.remove(r.rid);
+            TreeMap<Integer, Row> rows = reservationsByUser.get(r.user);
+            rows.remove(r.rid);
+            if (rows.isEmpty()) {
+                reservationsByUser.remove(r.user);
+            }
+        }
+
+        private void addSeats(int fid, int delta) {
+            seats.merge(fid, delta, Integer::sum);
+        }
+
+        private void clear() {
+            users.clear();
+            reservations.clear();
+            reservationsByUser.clear();
+            seats.clear();
+            nextRid = 1;
+        }
+
+        /**
+         * Opens the journal, after loading the snapshot and replaying the journal on top of it.
+         */
+        private void recover(Path journalFile, long snapshotBytes) throws IOException {
+            this.snapshotFile = journalFile.resolveSibling(journalFile.getFileName() + ".snapshot");
+            this.snapshotBytes = snapshotBytes;
+            long lsn = Files.exists(snapshotFile) ? readSnapshot() : 0;
+            journal = new Journal(journalFile, 1 << 20);
+            journal.replay(lsn, (recordLsn, in) -> {
+                while (in.available() > 0) {
+                    apply(in);
+                }
+            });
+            rowsByFid = null;
+        }
+
+        // one change of a journal record, as the session that made it applied it
+        private void apply(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            if (type == INSERT_USER) {
+                users.put(in.readUTF(), new User(in.readUTF(), in.readInt()));
+            } else if (type == UPDATE_BALANCE) {
+                String user = in.readUTF();
+                int balance = in.readInt();
+                users.get(user).balance = balance;
+            } else if (type == BOOK) {
+                int rid = in.readInt();
+                String user = in.readUTF();
+                Query.Flight f1 = flight(in.readInt());
+                int fid2 = in.readInt();
+                Query.Flight f2 = fid2 < 0 ? null : flight(fid2);
+                insert(new Row(rid, user, f1, f2));
+                addSeats(f1.getFid(), 1);
+                if (f2 != null) {
+                    addSeats(f2.getFid(), 1);
+                }
+                nextRid = Math.max(nextRid, rid + 1);
+            } else if (type == MARK_PAID) {
+                reservations.get(in.readInt()).paid = true;
+            } else if (type == RELEASE_SEATS) {
+                addSeats(in.readInt(), -1);
+            } else if (type == DELETE_RESERVATION) {
+                remove(reservations.get(in.readInt()));
+            } else {
+                throw new IOException("unknown journal entry " + type);
+            }
+        }
+
+        private Query.Flight flight(int fid) throws IOException {
+            if (rowsByFid == null) {
+                rowsByFid = new HashMap<>();
+                for (int row = 0; row < flights.size(); row++) {
+                    rowsByFid.put(flights.fid(row), row);
+                }
+            }
+            Integer row = rowsByFid.get(fid);
+            if (row == null) {
+                throw new IOException("journal refers to unknown flight " + fid);
+            }
+            return flights.flight(row);
+        }
+
+        /**
+         * Writes everything to the snapshot file and empties the journal. The caller holds
+         * the lock.
+         */
+        private void snapshot() throws IOException {
+            Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            try (FileOutputStream file = new FileOutputStream(tmp.toFile())) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeLong(journal.lastLsn());
+                out.writeInt(nextRid);
+                out.writeInt(users.size());
+                for (Map.Entry<String, User> e : users.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(e.getValue().password);
+                    out.writeInt(e.getValue().balance);
+                }
+                out.writeInt(reservations.size());
+                for (Row r : reservations.values()) {
+                    out.writeInt(r.rid);
+                    out.writeUTF(r.user);
+                    out.writeBoolean(r.paid);
+                    out.writeInt(r.f1.getFid());
+                    out.writeInt(r.f2 == null ? -1 : r.f2.getFid());
+                }
+                out.writeInt(seats.size());
+                for (Map.Entry<Integer, Integer> e : seats.entrySet()) {
+                    out.writeInt(e.getKey());
+                    out.writeInt(e.getValue());
+                }
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journal.reset();
+        }
+
+        // @return the LSN of the last journal record in the snapshot
+        private long readSnapshot() throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile), 1 << 16))) {
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                    throw new IOException(snapshotFile + " is not a snapshot");
+                }
+                long lsn = in.readLong();
+                nextRid = in.readInt();
+                for (int i = in.readInt(); i > 0; i--) {
+                    users.put(in.readUTF(), new User(in.readUTF(), in.readInt()));
+                }
+                for (int i = in.readInt(); i > 0; i--) {
+                    int rid = in.readInt();
+                    String user = in.readUTF();
+                    boolean paid = in.readBoolean();
+                    Query.Flight f1 = flight(in.readInt());
+                    int fid2 = in.readInt();
+                    Row r = new Row(rid, user, f1, fid2 < 0 ? null : flight(fid2));
+                    r.paid = paid;
+                    insert(r);
+                }
+                for (int i = in.readInt(); i > 0; i--) {
+                    seats.put(in.readInt(), in.readInt());
+                }
+                return lsn;
+            }
+        }
+    }
+
+    // the changes of the current transaction, written to the journal at commit
+    private static final class Redo extends ByteArrayOutputStream
+    {
+        private final DataOutputStream out = new DataOutputStream(this);
+
+        private byte[] bytes() {
+            return buf;
+        }
+    }
+
+    private final Database db;
+    private final ArrayDeque<Runnable> undo = new ArrayDeque<>();
+    private final Redo redo = new Redo();
+    private boolean transaction;
+    private boolean locked;
+
+    public InMemoryBackend(Database db)
+    {
+        this.db = db;
+    }
+
+    /**
+     * Returns a session on the database shared by all sessions of this JVM, loading the
+     * flights and recovering the data the first time.
+     */
+    public static InMemoryBackend open(Properties configProps) throws IOException
+    {
+        return new InMemoryBackend(shared(configProps));
+    }
+
+    static synchronized Database shared(Properties configProps) throws IOException
+    {
+        if (shared == null) {
+            String snapshot = configProps.getProperty("flightservice.flight_snapshot", "").trim();
+            String csv = configProps.getProperty("flightservice.flights_csv", "").trim();
+            Path snapshotFile = snapshot.isEmpty() ? null : Paths.get(snapshot);
+            FlightStore flights;
+            if (snapshotFile != null && Files.exists(snapshotFile)) {
+                flights = FlightStore.mapSnapshot(snapshotFile);
+            } else if (!csv.isEmpty()) {
+                flights = FlightStore.loadCsv(Paths.get(csv));
+                if (snapshotFile != null) {
+                    flights.writeSnapshot(snapshotFile);
+                }
+            } else {
+                throw new IOException("the memory backend needs flightservice.flights_csv or an existing flightservice.flight_snapshot");
+            }
+            Database db = new Database(flights, Integer.parseInt(configProps.getProperty("flightservice.connection_depth", "10").trim()));
+            String journal = configProps.getProperty("flightservice.journal", "").trim();
+            if (!journal.isEmpty()) {
+                long snapshotMegabytes = Long.parseLong(configProps.getProperty("flightservice.journal_snapshot_mb", "64").trim());
+                db.recover(Paths.get(journal), snapshotMegabytes << 20);
+                Metrics.register("journal", db.journal::stats);
+            }
+            shared = db;
+        }
+        return shared;
+    }
+
+    /**
+     * Forgets the shared database and closes its journal, as if the JVM had stopped, so that
+     * the next {@link #open} maps the flight snapshot and recovers the journal again. No
+     * session may be open. Used by {@link Grader} to test recovery.
+     */
+    static synchronized void restart() throws IOException
+    {
+        if (shared != null && shared.journal != null) {
+            shared.journal.close();
+        }
+        shared = null;
+    }
+
+    public void begin()
+    {
+        transaction = true;
+    }
+
+    public void commit() throws SQLException
+    {
+        transaction = false;
+        exit();
+    }
+
+    public void rollback()
+    {
+        while (!undo.isEmpty()) {
+            undo.pop().run();
+        }
+        redo.reset();
+        transaction = false;
+        unlock();
+    }
+
+    public boolean inTransaction()
+    {
+        return transaction;
+    }
+
+    public void prepare() {}
+
+    public void clear() throws SQLException
+    {
+        enter();
+        try {
+            db.clear();
+            undo.clear(); // like the DELETEs and DBCC of JdbcBackend, not undone
+            redo.reset();
+            if (db.journal != null) {
+                db.snapshot();
+            }
+        } catch (IOException e) {
+            throw journalFailed(e);
+        } finally {
+            exit();
+        }
+    }
+
+    public void close()
+    {
+        rollback();
+    }
+
+    public String password(String username) throws SQLException
+    {
+        enter();
+        try {
+            User u = db.users.get(RouteIndex.key(username));
+            return u == null ? "" : u.password;
+        } finally {
+            exit();
+        }
+    }
+
+    public void insertUser(String username, String password, int balance) throws SQLException
+    {
+        if (username.length() > MAX_NAME || (password != null && password.length() > MAX_NAME)) {
+            throw new SQLException("String or binary data would be truncated.", "22001", TRUNCATION);
+        }
+        enter();
+        try {
+            final String key = RouteIndex.key(username);
+            if (db.users.containsKey(key)) {
+                throw new SQLException("Violation of PRIMARY KEY constraint on Users.", "23000", DUPLICATE_KEY);
+            }
+            db.users.put(key, new User(password, balance));
+            undo.push(() -> db.users.remove(key));
+            if (db.journal != null) {
+                redo.out.writeByte(INSERT_USER);
+                redo.out.writeUTF(key);
+                redo.out.writeUTF(password);
+                redo.out.writeInt(balance);
+            }
+        } catch (IOException e) {
+            throw new SQLException(e);
+        } finally {
+            exit();
+        }
+    }
+
+    public int balance(String username) throws SQLException
+    {
+        enter();
+        try {
+            return user(username).balance;
+        } finally {
+            exit();
+        }
+    }
+
+    public void updateBalance(String username, int balance) throws SQLException
+    {
+        enter();
+        try {
+            String key = RouteIndex.key(username);
+            final User u = db.users.get(key);
+            if (u != null) {
+                final int old = u.balance;
+                u.balance = balance;
+                undo.push(() -> u.balance = old);
+                if (db.journal != null) {
+                    redo.out.writeByte(UPDATE_BALANCE);
+                    redo.out.writeUTF(key);
+                    redo.out.writeInt(balance);
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException(e);
+        } finally {
+            exit();
+        }
+    }
+
+    public int bookedDays(String username) throws SQLException
+    {
+        enter();
+        try {
+            int days = 0;
+            for (Row r : rows(username)) {
+                days |= Query.dayBit(r.f1.getDay());
+            }
+            return days;
+        } finally {
+            exit();
+        }
+    }
+
+    public List<Query.Itinerary> direct(String origin, String dest, int day, int n)
+    {
+        return db.index.direct(origin, dest, day, n);
+    }
+
+    public List<Query.Itinerary> indirect(String origin, String dest, int day, int n)
+    {
+        return db.index.indirect(origin, dest, day, n);
+    }
+
+    /**
+     * Same checks and results as the BookItinerary procedure, all under the lock.
+     */
+    public int[] book(String username, Query.Flight f1, Query.Flight f2) throws SQLException
+    {
+        enter();
+        try {
+            String key = RouteIndex.key(username);
+            user(username);
+            for (Row r : rows(username)) {
+                if (r.f1.getDay() == f1.getDay()) {
+                    return new int[] {SAME_DAY, 0};
+                }
+            }
+            if (!hasSeat(f1) || (f2 != null && !hasSeat(f2))) {
+                return new int[] {FULL, 0};
+            }
+            final Row r = new Row(db.nextRid++, key, f1, f2);
+            db.addSeats(f1.getFid(), 1);
+            if (f2 != null) {
+                db.addSeats(f2.getFid(), 1);
+            }
+            db.insert(r);
+            undo.push(() -> {
+                db.remove(r);
+                db.addSeats(r.f1.getFid(), -1);
+                if (r.f2 != null) {
+                    db.addSeats(r.f2.getFid(), -1);
+                }
+            });
+            if (db.journal != null) {
+                redo.out.writeByte(BOOK);
+                redo.out.writeInt(r.rid);
+                redo.out.writeUTF(key);
+                redo.out.writeInt(f1.getFid());
+                redo.out.writeInt(f2 == null ? -1 : f2.getFid());
+            }
+            return new int[] {BOOKED, r.rid};
+        } catch (IOException e) {
+            throw new SQLException(e);
+        } finally {
+            exit();
+        }
+    }
+
+    public Reservation reservation(String username, int rid) throws SQLException
+    {
+        enter();
+        try {
+            TreeMap<Integer, Row> rows = db.reservationsByUser.get(RouteIndex.key(username));
+            Row r = rows == null ? null : rows.get(rid);
+            return r == null ? null : r.reservation();
+        } finally {
+            exit();
+        }
+    }
+
+    public List<Reservation> reservations(String username) throws SQLException
+    {
+        enter();
+        try {
+            List<Reservation> reservations = new ArrayList<>();
+            for (Row r : rows(username)) {
+                reservations.add(r.reservation());
+            }
+            return reservations;
+        } finally {
+            exit();
+        }
+    }
+
+    public void markPaid(int rid) throws SQLException
+    {
+        enter();
+        try {
+            final Row r = db.reservations.get(rid);
+            if (r != null && !r.paid) {
+                r.paid = true;
+                undo.push(() -> r.paid = false);
+                if (db.journal != null) {
+                    redo.out.writeByte(MARK_PAID);
+                    redo.out.writeInt(rid);
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException(e);
+        } finally {
+            exit();
+        }
+    }
+
+    public void releaseSeats(int rid) throws SQLException
+    {
+        enter();
+        try {
+            final Row r = db.reservations.get(rid);
+            if (r != null) {
+                final boolean second = r.f2 != null && r.f2.getFid() != r.f1.getFid();
+                releaseSeat(r.f1.getFid());
+                if (second) {
+                    releaseSeat(r.f2.getFid());
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException(e);
+        } finally {
+            exit();
+        }
+    }
+
+    public void deleteReservation(int rid) throws SQLException
+    {
+        enter();
+        try {
+            final Row r = db.reservations.get(rid);
+            if (r != null) {
+                db.remove(r);
+                undo.push(() -> db.insert(r));
+                if (db.journal != null) {
+                    redo.out.writeByte(DELETE_RESERVATION);
+                    redo.out.writeInt(rid);
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException(e);
+        } finally {
+            exit();
+        }
+    }
+
+    // takes the lock unless this transaction already holds it
+    private void enter() throws SQLException
+    {
+        if (locked) {
+            return;
+        }
+        if (db.failure != null) {
+            throw new SQLException("The journal failed, restart to recover: " + db.failure.getMessage(), db.failure);
+        }
+        try {
+            if (!db.lock.tryAcquire(LOCK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Lock request time out period exceeded.", "HY000", LOCK_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a lock", e);
+        }
+        locked = true;
+    }
+
+    /**
+     * Outside of a transaction every operation commits on its own: its changes go to the
+     * journal, the lock is released, and then the journal record is waited for.
+     */
+    private void exit() throws SQLException
+    {
+        if (transaction) {
+            return;
+        }
+        undo.clear();
+        long lsn = 0;
+        try {
+            if (redo.size() > 0) {
+                lsn = db.journal.append(redo.bytes(), redo.size());
+                redo.reset();
+                if (db.journal.size() > db.snapshotBytes) {
+                    db.snapshot(); // still under the lock, so the snapshot is consistent
+                }
+            }
+        } catch (IOException e) {
+            throw journalFailed(e);
+        } finally {
+            redo.reset();
+            unlock();
+        }
+        if (lsn > 0) {
+            try {
+                db.journal.sync(lsn);
+            } catch (IOException e) {
+                throw journalFailed(e);
+            }
+        }
+    }
+
+    /**
+     * Stops the database after a journal failure, see the class comment. The changes of the
+     * current operation are applied and may already be visible, so they are not undone.
+     */
+    private SQLException journalFailed(IOException e)
+    {
+        db.failure = e;
+        return new SQLException("Failed to write the journal; the transaction may or may not be durable, " +
+                                "and the database stops until restarted", e);
+    }
+
+    private void unlock()
+    {
+        if (locked) {
+            locked = false;
+            db.lock.release();
+        }
+    }
+
+    private User user(String username) throws SQLException
+    {
+        User u = db.users.get(RouteIndex.key(username));
+        if (u == null) {
+            throw new SQLException("No such user " + username);
+        }
+        return u;
+    }
+
+    private Iterable<Row> rows(String username)
+    {
+        TreeMap<Integer, Row> rows = db.reservationsByUser.get(RouteIndex.key(username));
+        return rows == null ? new ArrayList<Row>() : rows.values();
+    }
+
+    private boolean hasSeat(Query.Flight f)
+    {
+        return db.seats.getOrDefault(f.getFid(), 0) < f.getCapacity();
+    }
+
+    // UPDATE SeatCounts SET booked = booked - 1, for a flight that has a counter
+    private void releaseSeat(final int fid) throws IOException
+    {
+        if (db.seats.containsKey(fid)) {
+            db.addSeats(fid, -1);
+            undo.push(() -> db.addSeats(fid, 1));
+            if (db.journal != null) {
+                redo.out.writeByte(RELEASE_SEATS);
+                redo.out.writeInt(fid);
+            }
+        }
+    }
+}
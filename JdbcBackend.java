@@ -0,0 +1,714 @@
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * {@link StorageBackend} on the SQL Server database of dbconn.properties.
+ *
+ * A transaction runs on a connection borrowed from the shared {@link ConnectionPool} at
+ * {@link #begin()} and handed back at commit or rollback; statements come from the
+ * connection's statement cache. Flight rows read along with reservations are kept in the
+ * shared {@link FlightCache}.
+ */
+public class JdbcBackend implements StorageBackend
+{
+    // Canned queries; the package-private ones are also run by Migrate to capture their plans
+    private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
+
+    private static final String CHECK_USER = "SELECT * FROM Users WHERE username = ?";
+
+    private static final String INSERT_USER = "INSERT INTO Users VALUES (?, ?, ?)";
+
+    static final String DIRECT_SEARCH =
+        "SELECT TOP (?) * " +
+        "FROM Flights " +
+        "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled = 0 " +
+        "ORDER BY actual_time, fid";
+
+    static final String INDIRECT_SEARCH =
+        "SELECT TOP (?) f1.fid fid1, f1.day_of_month day1, f1.carrier_id carrier1, f1.flight_num num1, f1.origin_city origin1, f1.dest_city dest1, f1.actual_time time1, f1.capacity capacity1, f1.price price1, " +
+        "f2.fid fid2, f1.day_of_month day2, f2.carrier_id carrier2, f2.flight_num num2, f2.origin_city origin2, f2.dest_city dest2, f2.actual_time time2, f2.capacity capacity2, f2.price price2 " +
+        "FROM Flights f1, Flights f2 " +
+        "WHERE f1.origin_city = ? AND f1.dest_city = f2.origin_city AND f2.dest_city = ? AND f1.day_of_month = ? AND f1.day_of_month = f2.day_of_month AND f1.canceled = 0 AND f2.canceled = 0 "+
+        "ORDER BY (f1.actual_time + f2.actual_time), f1.fid, f2.fid";
+
+    // LEFT JOINs so reservations and missing flights render exactly as with one lookup per flight
+    private static final String RESERVATIONS_WITH_FLIGHTS_SELECT =
+        "SELECT r.rid, r.paid, r.fid1, f1.day_of_month day1, f1.carrier_id carrier1, f1.flight_num num1, f1.origin_city origin1, f1.dest_city dest1, f1.actual_time time1, f1.capacity capacity1, f1.price price1, " +
+        "r.fid2, f2.day_of_month day2, f2.carrier_id carrier2, f2.flight_num num2, f2.origin_city origin2, f2.dest_city dest2, f2.actual_time time2, f2.capacity capacity2, f2.price price2 " +
+        "FROM Reservations r LEFT JOIN Flights f1 ON f1.fid = r.fid1 LEFT JOIN Flights f2 ON f2.fid = r.fid2 ";
+
+    static final String RESERVATIONS_WITH_FLIGHTS = RESERVATIONS_WITH_FLIGHTS_SELECT +
+                                                            "WHERE r.username = ? " +
+                                                            "ORDER BY r.rid";
+
+    private static final String RESERVATION_WITH_FLIGHTS = RESERVATIONS_WITH_FLIGHTS_SELECT +
+                                                           "WHERE r.username = ? AND r.rid = ?";
+
+    // SeatCounts keeps the number of booked seats per flight, see BookItinerary in createTables.sql
+    private static final String RELEASE_SEATS = "UPDATE SeatCounts SET booked = booked - 1, version = version + 1 " +
+                                                "WHERE fid IN (SELECT fid1 FROM Reservations WHERE rid = ?) " +
+                                                "OR fid IN (SELECT fid2 FROM Reservations WHERE rid = ?)";
+
+    // same-day check, seat on each flight and reservation insert in one server-side transaction
+    private static final String BOOK_ITINERARY = "{call BookItinerary(?, ?, ?, ?, ?)}";
+
+    // optimistic booking, see bookOptimistic
+    private static final String LOCK_USER = "UPDATE Users SET balance = balance WHERE username = ?";
+
+    static final String SAME_DAY_RESERVATION = "SELECT COUNT(*) AS n " +
+                                                       "FROM Reservations r JOIN Flights f ON f.fid = r.fid1 " +
+                                                       "WHERE r.username = ? AND f.day_of_month = ?";
+
+    private static final String CREATE_SEAT_COUNT = "INSERT INTO SeatCounts (fid, booked) " +
+                                                    "SELECT ?, 0 WHERE NOT EXISTS (SELECT * FROM SeatCounts WHERE fid = ?)";
+
+    // the capacity as it is now, not as the search that found the flight read it
+    private static final String READ_SEAT_COUNT = "SELECT s.booked, s.version, f.capacity " +
+                                                  "FROM SeatCounts s JOIN Flights f ON f.fid = s.fid WHERE s.fid = ?";
+
+    private static final String TAKE_SEAT = "UPDATE s SET booked = booked + 1, version = version + 1 " +
+                                            "FROM SeatCounts s JOIN Flights f ON f.fid = s.fid " +
+                                            "WHERE s.fid = ? AND s.version = ? AND s.booked < f.capacity";
+
+    // the next contiguous reservation id, see ReservationIds
+    private static final String TAKE_RESERVATION_ID = "UPDATE ReservationIds SET next_rid = next_rid + 1 OUTPUT DELETED.next_rid";
+
+    private static final String INSERT_RESERVATION = "INSERT INTO Reservations VALUES (?, 0, ?, ?, ?)";
+
+    private static final String UPDATE_USER_BALANCE = "UPDATE Users SET balance = ? WHERE username = ?";
+
+    private static final String UPDATE_RESERVATION_PAID = "UPDATE Reservations SET paid = 1 WHERE rid = ?";
+
+    static final String BOOKED_DAYS = "SELECT DISTINCT f.day_of_month " +
+                                              "FROM Reservations r JOIN Flights f ON f.fid = r.fid1 " +
+                                              "WHERE r.username = ?";
+
+    private static final String DELETE_RESERVATION = "DELETE FROM Reservations WHERE rid = ?";
+
+    // transactions
+    private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
+
+    private static final String BEGIN_READ_COMMITTED_SQL = "SET TRANSACTION ISOLATION LEVEL READ COMMITTED; BEGIN TRANSACTION;";
+
+    private static final String COMMIT_SQL = "COMMIT TRANSACTION";
+
+    private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
+
+    // DB Connections, shared by all sessions
+    private final ConnectionPool pool;
+
+    // Flight rows by fid, shared by all sessions
+    private final FlightCache flightCache;
+
+    // book with version-checked seat updates instead of the SERIALIZABLE procedure
+    private final boolean optimisticBooking;
+    private final int bookingRetries;
+
+    // reservation ids from blocks reserved ahead, null to take each id in its booking transaction
+    private final ReservationIds reservationIds;
+
+    // Connection borrowed for the current transaction, null outside of one
+    private ConnectionPool.PooledConnection conn;
+
+    // the one-hop search in progress, for cancel()
+    private volatile PreparedStatement running;
+    // set by cancel(), so a search that had not started yet is not run either
+    private volatile boolean cancelled;
+
+    public JdbcBackend(ConnectionPool pool, FlightCache flightCache, Properties configProps)
+    {
+        this.pool = pool;
+        this.flightCache = flightCache;
+        this.optimisticBooking = configProps.getProperty("flightservice.booking_mode", "serializable").trim().equals("optimistic");
+        this.bookingRetries = Integer.parseInt(configProps.getProperty("flightservice.booking_retries", "5").trim());
+        int idBlock = Integer.parseInt(configProps.getProperty("flightservice.reservation_id_block", "1").trim());
+        if (idBlock > 1) {
+            this.reservationIds = ReservationIds.shared(idBlock);
+            Metrics.register("reservationIds", reservationIds::stats);
+        } else {
+            this.reservationIds = null;
+        }
+    }
+
+    public void begin() throws SQLException
+    {
+        borrowConnection();
+        startTransaction();
+    }
+
+    /**
+     * Begins a transaction if a pooled connection is free right away, for work that can as
+     * well be done another way, see {@link ConnectionPool#tryBorrow}. Clears a previous
+     * {@link #cancel}.
+     *
+     * @return false if no connection was free
+     */
+    public boolean tryBegin() throws SQLException
+    {
+        conn = pool.tryBorrow();
+        if (conn == null) {
+            return false;
+        }
+        cancelled = false;
+        startTransaction();
+        return true;
+    }
+
+    private void startTransaction() throws SQLException
+    {
+        try {
+            conn.connection().setAutoCommit(false);
+            Metrics.executeUpdate(conn.prepare(BEGIN_TRANSACTION_SQL), BEGIN_TRANSACTION_SQL);
+        } catch (SQLException e) {
+            releaseConnection(true);
+            throw e;
+        }
+    }
+
+    public void commit() throws SQLException
+    {
+        // on failure the connection stays borrowed until the caller rolls back
+        Metrics.executeUpdate(conn.prepare(COMMIT_SQL), COMMIT_SQL);
+        releaseConnection(false);
+    }
+
+    public void rollback() throws SQLException
+    {
+        if (conn == null) {
+            return; // nothing in progress
+        }
+        boolean broken = true;
+        try {
+            Metrics.executeUpdate(conn.prepare(ROLLBACK_SQL), ROLLBACK_SQL);
+            broken = false;
+        } finally {
+            // after a failed ROLLBACK the transaction may still be open, and handing the
+            // connection back would commit it when the pool resets auto-commit
+            releaseConnection(broken);
+        }
+    }
+
+    public boolean inTransaction()
+    {
+        return conn != null;
+    }
+
+    /**
+     * prepare all the SQL statements in this method.
+     * "preparing" a statement is almost like compiling it.
+     * Note that the parameters (with ?) are still not filled in
+     *
+     * Statements are cached per pooled connection, so this only warms up the cache of
+     * one connection; the others prepare on first use.
+     */
+    public void prepare() throws SQLException
+    {
+        borrowConnection();
+        try {
+            conn.prepare(BEGIN_TRANSACTION_SQL);
+            conn.prepare(COMMIT_SQL);
+            conn.prepare(ROLLBACK_SQL);
+            conn.prepare(CHECK_FLIGHT_CAPACITY);
+            conn.prepare(CHECK_USER);
+            conn.prepare(INSERT_USER);
+            conn.prepare(DIRECT_SEARCH);
+            conn.prepare(INDIRECT_SEARCH);
+            conn.prepare(RESERVATIONS_WITH_FLIGHTS);
+            conn.prepare(RESERVATION_WITH_FLIGHTS);
+            conn.prepare(RELEASE_SEATS);
+            conn.prepareCall(BOOK_ITINERARY);
+            conn.prepare(UPDATE_USER_BALANCE);
+            conn.prepare(UPDATE_RESERVATION_PAID);
+            conn.prepare(BOOKED_DAYS);
+            conn.prepare(DELETE_RESERVATION);
+            if (optimisticBooking) {
+                conn.prepare(BEGIN_READ_COMMITTED_SQL);
+                conn.prepare(LOCK_USER);
+                conn.prepare(SAME_DAY_RESERVATION);
+                conn.prepare(CREATE_SEAT_COUNT);
+                conn.prepare(READ_SEAT_COUNT);
+                conn.prepare(TAKE_SEAT);
+                if (reservationIds == null) {
+                    conn.prepare(TAKE_RESERVATION_ID);
+                }
+                conn.prepare(INSERT_RESERVATION);
+            }
+        } finally {
+            releaseConnection(false);
+        }
+    }
+
+    public void clear() throws SQLException
+    {
+        String deleteReservations = "DELETE FROM Reservations";
+        String deleteUsers = "DELETE FROM Users";
+        String resetReservationID = "UPDATE ReservationIds SET next_rid = 1";
+        String deleteSeatCounts = "DELETE FROM SeatCounts";
+        borrowConnection();
+        try {
+            Metrics.executeUpdate(conn.prepare(deleteReservations), deleteReservations);
+            Metrics.executeUpdate(conn.prepare(deleteUsers), deleteUsers);
+            Metrics.executeUpdate(conn.prepare(resetReservationID), resetReservationID);
+            Metrics.executeUpdate(conn.prepare(deleteSeatCounts), deleteSeatCounts);
+        } finally {
+            releaseConnection(false);
+        }
+        if (reservationIds != null) {
+            reservationIds.reset();
+        }
+    }
+
+    public void close()
+    {
+        /* the physical connections belong to the pool; only give back one still borrowed */
+        if (conn != null) {
+            releaseConnection(true);
+        }
+    }
+
+    /**
+     * @return the shared pool, for code that needs a connection of its own
+     */
+    public ConnectionPool pool()
+    {
+        return pool;
+    }
+
+    public String password(String username) throws SQLException
+    {
+        PreparedStatement checkUserStatement = conn.prepare(CHECK_USER);
+        checkUserStatement.clearParameters();
+        checkUserStatement.setString(1, username);
+        ResultSet rs = Metrics.executeQuery(checkUserStatement, CHECK_USER);
+        String password = (rs.next() ? rs.getString("password") : "");
+        rs.close();
+        Metrics.fetched(CHECK_USER, password.isEmpty() ? 0 : 1);
+        return password;
+    }
+
+    public void insertUser(String username, String password, int balance) throws SQLException
+    {
+        PreparedStatement insertUserStatement = conn.prepare(INSERT_USER);
+        insertUserStatement.clearParameters();
+        insertUserStatement.setString(1, username);
+        insertUserStatement.setString(2, password);
+        insertUserStatement.setInt(3, balance);
+        Metrics.executeUpdate(insertUserStatement, INSERT_USER);
+    }
+
+    public int balance(String username) throws SQLException
+    {
+        PreparedStatement checkUserStatement = conn.prepare(CHECK_USER);
+        checkUserStatement.clearParameters();
+        checkUserStatement.setString(1, username);
+        ResultSet rs = Metrics.executeQuery(checkUserStatement, CHECK_USER);
+        rs.next();
+        int balance = rs.getInt("balance");
+        rs.close();
+        Metrics.fetched(CHECK_USER, 1);
+        return balance;
+    }
+
+    public void updateBalance(String username, int newBalance) throws SQLException
+    {
+        PreparedStatement updateUserBalanceStatement = conn.prepare(UPDATE_USER_BALANCE);
+        updateUserBalanceStatement.clearParameters();
+        updateUserBalanceStatement.setInt(1, newBalance);
+        updateUserBalanceStatement.setString(2, username);
+        Metrics.executeUpdate(updateUserBalanceStatement, UPDATE_USER_BALANCE);
+    }
+
+    public int bookedDays(String username) throws SQLException
+    {
+        PreparedStatement bookedDaysStatement = conn.prepare(BOOKED_DAYS);
+        bookedDaysStatement.clearParameters();
+        bookedDaysStatement.setString(1, username);
+        ResultSet rs = Metrics.executeQuery(bookedDaysStatement, BOOKED_DAYS);
+        int days = 0;
+        int rows = 0;
+        for (; rs.next(); rows++) {
+            days |= Query.dayBit(rs.getInt("day_of_month"));
+        }
+        rs.close();
+        Metrics.fetched(BOOKED_DAYS, rows);
+        return days;
+    }
+
+    public List<Query.Itinerary> direct(String origin, String dest, int day, int n) throws SQLException
+    {
+        List<Query.Itinerary> direct = new ArrayList<Query.Itinerary>();
+        PreparedStatement directSearchStatement = conn.prepare(DIRECT_SEARCH);
+        directSearchStatement.clearParameters();
+        directSearchStatement.setInt(1, n);
+        directSearchStatement.setString(2, origin);
+        directSearchStatement.setString(3, dest);
+        directSearchStatement.setInt(4, day);
+        ResultSet rs = Metrics.executeQuery(directSearchStatement, DIRECT_SEARCH);
+        while (rs.next()) {
+            Query.Flight f1 = new Query.Flight(rs.getInt("fid"), rs.getInt("day_of_month"), rs.getString("carrier_id"), rs.getString("flight_num"), rs.getString("origin_city"), rs.getString("dest_city"), rs.getInt("actual_time"), rs.getInt("capacity"), rs.getInt("price"));
+            direct.add(new Query.Itinerary(f1));
+        }
+        rs.close();
+        Metrics.fetched(DIRECT_SEARCH, direct.size());
+        return direct;
+    }
+
+    public List<Query.Itinerary> indirect(String origin, String dest, int day, int n) throws SQLException
+    {
+        List<Query.Itinerary> indirect = new ArrayList<Query.Itinerary>();
+        PreparedStatement indirectSearchStatement = conn.prepare(INDIRECT_SEARCH);
+        indirectSearchStatement.clearParameters();
+        indirectSearchStatement.setInt(1, n);
+        indirectSearchStatement.setString(2, origin);
+        indirectSearchStatement.setString(3, dest);
+        indirectSearchStatement.setInt(4, day);
+        ResultSet rs;
+        running = indirectSearchStatement;
+        try {
+            if (cancelled) {
+                throw new SQLException("One-hop search canceled");
+            }
+            rs = Metrics.executeQuery(indirectSearchStatement, INDIRECT_SEARCH);
+        } finally {
+            running = null;
+        }
+        while (rs.next()) {
+            Query.Flight f1 = new Query.Flight(rs.getInt("fid1"), rs.getInt("day1"), rs.getString("carrier1"), rs.getString("num1"), rs.getString("origin1"), rs.getString("dest1"), rs.getInt("time1"), rs.getInt("capacity1"), rs.getInt("price1"));
+            Query.Flight f2 = new Query.Flight(rs.getInt("fid2"), rs.getInt("day2"), rs.getString("carrier2"), rs.getString("num2"), rs.getString("origin2"), rs.getString("dest2"), rs.getInt("time2"), rs.getInt("capacity2"), rs.getInt("price2"));
+            indirect.add(new Query.Itinerary(f1, f2));
+        }
+        rs.close();
+        Metrics.fetched(INDIRECT_SEARCH, indirect.size());
+        return indirect;
+    }
+
+    /**
+     * Cancels a one-hop search running or about to run on another thread; it fails with an
+     * SQLException.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        PreparedStatement ps = running;
+        if (ps != null) {
+            try {
+                ps.cancel();
+            } catch (SQLException e) {} // it has finished meanwhile
+        }
+    }
+
+    /**
+     * Runs the BookItinerary procedure, or books optimistically when booking_mode is
+     * "optimistic", each on a connection of its own.
+     */
+    public int[] book(String username, Query.Flight f1, Query.Flight f2) throws SQLException
+    {
+        int[] result;
+        borrowConnection();
+        try {
+            result = optimisticBooking ? bookOptimistic(username, f1, f2) : bookItinerary(username, f1, f2);
+        } finally {
+            releaseConnection(false);
+        }
+        if (result[0] == BOOKED) {
+            // pay, cancel and reservations will need these rows
+            flightCache.put(f1);
+            if (f2 != null) {
+                flightCache.put(f2);
+            }
+        }
+        return result;
+    }
+
+    public Reservation reservation(String username, int rid) throws SQLException
+    {
+        PreparedStatement reservationStatement = conn.prepare(RESERVATION_WITH_FLIGHTS);
+        reservationStatement.clearParameters();
+        reservationStatement.setString(1, username);
+        reservationStatement.setInt(2, rid);
+        ResultSet rs = Metrics.executeQuery(reservationStatement, RESERVATION_WITH_FLIGHTS);
+        Reservation r = rs.next() ? reservation(rs) : null;
+        rs.close();
+        Metrics.fetched(RESERVATION_WITH_FLIGHTS, r == null ? 0 : 1);
+        return r;
+    }
+
+    public List<Reservation> reservations(String username) throws SQLException
+    {
+        List<Reservation> reservations = new ArrayList<>();
+        PreparedStatement reservationsStatement = conn.prepare(RESERVATIONS_WITH_FLIGHTS);
+        reservationsStatement.clearParameters();
+        reservationsStatement.setString(1, username);
+        ResultSet rs = Metrics.executeQuery(reservationsStatement, RESERVATIONS_WITH_FLIGHTS);
+        while (rs.next()) {
+            reservations.add(reservation(rs));
+        }
+        rs.close();
+        Metrics.fetched(RESERVATIONS_WITH_FLIGHTS, reservations.size());
+        return reservations;
+    }
+
+    public void markPaid(int rid) throws SQLException
+    {
+        PreparedStatement updateReservationPaidStatement = conn.prepare(UPDATE_RESERVATION_PAID);
+        updateReservationPaidStatement.clearParameters();
+        updateReservationPaidStatement.setInt(1, rid);
+        Metrics.executeUpdate(updateReservationPaidStatement, UPDATE_RESERVATION_PAID);
+    }
+
+    public void releaseSeats(int rid) throws SQLException
+    {
+        PreparedStatement releaseSeatsStatement = conn.prepare(RELEASE_SEATS);
+        releaseSeatsStatement.clearParameters();
+        releaseSeatsStatement.setInt(1, rid);
+        releaseSeatsStatement.setInt(2, rid);
+        Metrics.executeUpdate(releaseSeatsStatement, RELEASE_SEATS);
+    }
+
+    public void deleteReservation(int rid) throws SQLException
+    {
+        PreparedStatement deleteReservationStatement = conn.prepare(DELETE_RESERVATION);
+        deleteReservationStatement.clearParameters();
+        deleteReservationStatement.setInt(1, rid);
+        Metrics.executeUpdate(deleteReservationStatement, DELETE_RESERVATION);
+    }
+
+    private void borrowConnection() throws SQLException
+    {
+        conn = pool.borrow();
+    }
+
+    private void releaseConnection(boolean broken)
+    {
+        pool.release(conn, broken);
+        conn = null;
+    }
+
+    /**
+     * Shows an example of using PreparedStatements after setting arguments. You don't need to
+     * use this method if you don't want to.
+     */
+    private int checkFlightCapacity(int fid) throws SQLException
+    {
+        PreparedStatement checkFlightCapacityStatement = conn.prepare(CHECK_FLIGHT_CAPACITY);
+        checkFlightCapacityStatement.clearParameters();
+        checkFlightCapacityStatement.setInt(1, fid);
+        ResultSet results = Metrics.executeQuery(checkFlightCapacityStatement, CHECK_FLIGHT_CAPACITY);
+        results.next();
+        int capacity = results.getInt("capacity");
+        results.close();
+        Metrics.fetched(CHECK_FLIGHT_CAPACITY, 1);
+
+        return capacity;
+    }
+
+    // the current row of RESERVATION(S)_WITH_FLIGHTS
+    private Reservation reservation(ResultSet rs) throws SQLException
+    {
+        return new Reservation(rs.getInt("rid"), rs.getInt("paid") != 0, flightInfo(rs, "fid1", "1"), flightInfo(rs, "fid2", "2"));
+    }
+
+    private Query.Flight flightInfo(ResultSet rs, String fidColumn, String suffix) throws SQLException
+    {
+        // a NULL day means the LEFT JOIN found no such flight
+        rs.getInt("day" + suffix);
+        if (rs.wasNull()) {
+            return null;
+        }
+        return flightCache.get(rs, fidColumn, suffix);
+    }
+
+    /**
+     * Runs the BookItinerary procedure and returns its {status, reservation id}.
+     */
+    private int[] bookItinerary(String username, Query.Flight f1, Query.Flight f2) throws SQLException
+    {
+        CallableStatement bookItineraryStatement = conn.prepareCall(BOOK_ITINERARY);
+        bookItineraryStatement.clearParameters();
+        bookItineraryStatement.setString(1, username);
+        bookItineraryStatement.setInt(2, f1.getFid());
+        if (f2 != null) {
+            bookItineraryStatement.setInt(3, f2.getFid());
+        } else {
+            bookItineraryStatement.setNull(3, Types.INTEGER);
+        }
+        // a NULL id makes the procedure take the next one itself
+        if (reservationIds != null) {
+            bookItineraryStatement.setInt(5, reservationIds.next(conn));
+        } else {
+            bookItineraryStatement.setNull(5, Types.INTEGER);
+        }
+        bookItineraryStatement.registerOutParameter(4, Types.INTEGER);
+        bookItineraryStatement.registerOutParameter(5, Types.INTEGER);
+        Metrics.execute(bookItineraryStatement, BOOK_ITINERARY);
+        return new int[] { bookItineraryStatement.getInt(4), bookItineraryStatement.getInt(5) };
+    }
+
+    /**
+     * Books an itinerary without SERIALIZABLE range locks and returns the same
+     * {status, reservation id} as the BookItinerary procedure.
+     *
+     * Runs at READ COMMITTED. The user's row is locked first, so two bookings of the same
+     * user cannot both pass the same-day check. Each flight's seat counter is read and then
+     * updated only if its version is unchanged and a seat is left; a counter changed in
+     * between makes the attempt roll back and start over, up to bookingRetries times. The
+     * counters are updated in fid order so that two bookings cannot deadlock on them.
+     */
+    private int[] bookOptimistic(String username, Query.Flight f1, Query.Flight f2) throws SQLException
+    {
+        Query.Flight[] flights = f2 == null ? new Query.Flight[] {f1}
+                               : f1.getFid() <= f2.getFid() ? new Query.Flight[] {f1, f2} : new Query.Flight[] {f2, f1};
+        for (Query.Flight f : flights) {
+            createSeatCount(f.getFid());
+        }
+        // before the transaction, which must not reserve a block that its rollback would undo
+        int blockRid = reservationIds != null ? reservationIds.next(conn) : 0;
+        for (int attempt = 0; attempt < bookingRetries; attempt++) {
+            conn.connection().setAutoCommit(false);
+            Metrics.executeUpdate(conn.prepare(BEGIN_READ_COMMITTED_SQL), BEGIN_READ_COMMITTED_SQL);
+            try {
+                lockUser(username);
+                if (hasReservationOnDay(username, f1.getDay())) {
+                    Metrics.executeUpdate(conn.prepare(COMMIT_SQL), COMMIT_SQL);
+                    return new int[] {SAME_DAY, 0};
+                }
+                int status = BOOKED;
+                for (Query.Flight f : flights) {
+                    status = takeSeat(f.getFid());
+                    if (status != BOOKED) {
+                        break;
+                    }
+                }
+                if (status == BOOKED) {
+                    int rid = insertReservation(username, f1, f2, blockRid);
+                    Metrics.executeUpdate(conn.prepare(COMMIT_SQL), COMMIT_SQL);
+                    return new int[] {BOOKED, rid};
+                }
+                Metrics.executeUpdate(conn.prepare(ROLLBACK_SQL), ROLLBACK_SQL);
+                if (status == FULL) {
+                    return new int[] {FULL, 0};
+                }
+            } catch (SQLException e) {
+                try {
+                    Metrics.executeUpdate(conn.prepare(ROLLBACK_SQL), ROLLBACK_SQL);
+                } catch (SQLException e1) {}
+                throw e;
+            } finally {
+                conn.connection().setAutoCommit(true);
+            }
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextInt(1 << Math.min(attempt, 4)) + 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return new int[] {CONFLICT, 0};
+    }
+
+    // a flight's counter row exists before any optimistic booking reads it
+    private void createSeatCount(int fid) throws SQLException
+    {
+        PreparedStatement createSeatCountStatement = conn.prepare(CREATE_SEAT_COUNT);
+        createSeatCountStatement.clearParameters();
+        createSeatCountStatement.setInt(1, fid);
+        createSeatCountStatement.setInt(2, fid);
+        try {
+            Metrics.executeUpdate(createSeatCountStatement, CREATE_SEAT_COUNT);
+        } catch (SQLException e) {
+            if (e.getErrorCode() != 2627) {
+                throw e; // anything but another session having inserted it first
+            }
+        }
+    }
+
+    private void lockUser(String username) throws SQLException
+    {
+        PreparedStatement lockUserStatement = conn.prepare(LOCK_USER);
+        lockUserStatement.clearParameters();
+        lockUserStatement.setString(1, username);
+        Metrics.executeUpdate(lockUserStatement, LOCK_USER);
+    }
+
+    private boolean hasReservationOnDay(String username, int day) throws SQLException
+    {
+        PreparedStatement sameDayStatement = conn.prepare(SAME_DAY_RESERVATION);
+        sameDayStatement.clearParameters();
+        sameDayStatement.setString(1, username);
+        sameDayStatement.setInt(2, day);
+        ResultSet rs = Metrics.executeQuery(sameDayStatement, SAME_DAY_RESERVATION);
+        rs.next();
+        boolean exists = rs.getInt("n") > 0;
+        rs.close();
+        Metrics.fetched(SAME_DAY_RESERVATION, 1);
+        return exists;
+    }
+
+    /**
+     * @return BOOKED if a seat was taken, FULL if none is left, CONFLICT if the counter
+     * changed since it was read
+     */
+    private int takeSeat(int fid) throws SQLException
+    {
+        PreparedStatement readSeatCountStatement = conn.prepare(READ_SEAT_COUNT);
+        readSeatCountStatement.clearParameters();
+        readSeatCountStatement.setInt(1, fid);
+        ResultSet rs = Metrics.executeQuery(readSeatCountStatement, READ_SEAT_COUNT);
+        if (!rs.next()) {
+            rs.close();
+            Metrics.fetched(READ_SEAT_COUNT, 0);
+            return FULL; // no such flight
+        }
+        int booked = rs.getInt("booked");
+        int version = rs.getInt("version");
+        int capacity = rs.getInt("capacity");
+        rs.close();
+        Metrics.fetched(READ_SEAT_COUNT, 1);
+        if (booked >= capacity) {
+            return FULL;
+        }
+
+        PreparedStatement takeSeatStatement = conn.prepare(TAKE_SEAT);
+        takeSeatStatement.clearParameters();
+        takeSeatStatement.setInt(1, fid);
+        takeSeatStatement.setInt(2, version);
+        return Metrics.executeUpdate(takeSeatStatement, TAKE_SEAT) == 1 ? BOOKED : CONFLICT;
+    }
+
+    // blockRid is the id taken from a block, 0 to take the next one in this transaction
+    private int insertReservation(String username, Query.Flight f1, Query.Flight f2, int blockRid) throws SQLException
+    {
+        int rid = blockRid != 0 ? blockRid : takeReservationId();
+        PreparedStatement insertReservationStatement = conn.prepare(INSERT_RESERVATION);
+        insertReservationStatement.clearParameters();
+        insertReservationStatement.setInt(1, rid);
+        insertReservationStatement.setString(2, username);
+        insertReservationStatement.setInt(3, f1.getFid());
+        if (f2 != null) {
+            insertReservationStatement.setInt(4, f2.getFid());
+        } else {
+            insertReservationStatement.setNull(4, Types.INTEGER);
+        }
+        Metrics.executeUpdate(insertReservationStatement, INSERT_RESERVATION);
+        return rid;
+    }
+
+    // in the booking transaction, so a rolled back booking gives its id back
+    private int takeReservationId() throws SQLException
+    {
+        PreparedStatement takeReservationIdStatement = conn.prepare(TAKE_RESERVATION_ID);
+        ResultSet rs = Metrics.executeQuery(takeReservationIdStatement, TAKE_RESERVATION_ID);
+        rs.next();
+        int rid = rs.getInt(1);
+        rs.close();
+        Metrics.fetched(TAKE_RESERVATION_ID, 1);
+        return rid;
+    }
+}
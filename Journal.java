@@ -0,0 +1,273 @@
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped, append-only write-ahead log with group commit.
+ *
+ * Every record gets the next log sequence number (LSN). {@link #append} copies a record into
+ * the mapped file and returns at once; {@link #sync} waits until the record is on disk. Syncs
+ * are shared: the first waiter forces everything appended so far, and the sessions that
+ * appended meanwhile wait for that force or the next one, so a force covers a whole batch of
+ * concurrent commits and throughput grows with the number of sessions instead of being one
+ * commit per force.
+ *
+ * File layout (big-endian): int magic, int version, then records of
+ *   int length, int CRC32 of the payload, long LSN, length bytes of payload,
+ * ended by a length of 0. LSNs only grow; {@link #replay} stops at the first record that is
+ * cut short, fails its CRC or does not have a larger LSN than the one before, which is where
+ * a crash or a {@link #reset()} left the valid part of the log. The file grows by doubling.
+ */
+public class Journal implements Closeable
+{
+    private static final int MAGIC = 0x464C4A4E; // "FLJN"
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final int RECORD_HEADER = 16;
+
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position = HEADER;
+    private long lastLsn;
+
+    // guarded by flushLock
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Condition flushed = flushLock.newCondition();
+    private boolean flushing;
+    private long durableLsn;
+    private int forcedPosition = HEADER;
+    private int epoch; // bumped by reset, which moves forcedPosition back
+
+    // statistics
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong forces = new AtomicLong();
+    private final AtomicLong forceNanos = new AtomicLong();
+
+    /**
+     * Reads the payload of one record.
+     */
+    public interface Visitor
+    {
+        void record(long lsn, DataInputStream payload) throws IOException;
+    }
+
+    /**
+     * Opens {@code file}, creating it with {@code initialSize} bytes if it does not exist.
+     * Call {@link #replay} before appending to an existing log.
+     */
+    public Journal(Path file, int initialSize) throws IOException
+    {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean created = channel.size() == 0;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), Math.max(initialSize, 4096)));
+        if (created) {
+            buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(HEADER, 0);
+            buffer.force();
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException(file + " is not a journal");
+        }
+    }
+
+    /**
+     * Passes the payload of every valid record with an LSN above {@code afterLsn} to
+     * {@code visitor}, in order, and positions the log after the last valid record.
+     *
+     * @return the last LSN in the log, or {@code afterLsn} if it is larger
+     */
+    public synchronized long replay(long afterLsn, Visitor visitor) throws IOException
+    {
+        int p = HEADER;
+        long previous = 0;
+        CRC32 crc = new CRC32();
+        while (p + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(p);
+            if (length <= 0 || p + RECORD_HEADER + length > buffer.capacity()) {
+                break;
+            }
+            int checksum = buffer.getInt(p + 4);
+            long lsn = buffer.getLong(p + 8);
+            byte[] payload = new byte[length];
+            buffer.get(p + RECORD_HEADER, payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum || lsn <= previous) {
+                break;
+            }
+            if (lsn > afterLsn) {
+                visitor.record(lsn, new DataInputStream(new ByteArrayInputStream(payload)));
+            }
+            previous = lsn;
+            p += RECORD_HEADER + length;
+        }
+        position = p;
+        terminate();
+        lastLsn = Math.max(previous, afterLsn);
+        flushLock.lock();
+        try {
+            durableLsn = lastLsn;
+            forcedPosition = position;
+        } finally {
+            flushLock.unlock();
+        }
+        return lastLsn;
+    }
+
+    /**
+     * Appends a record holding the first {@code length} bytes of {@code payload}.
+     *
+     * @return its LSN, to pass to {@link #sync(long)}
+     */
+    public synchronized long append(byte[] payload, int length) throws IOException
+    {
+        int size = RECORD_HEADER + length;
+        if (position + size + 4 > buffer.capacity()) {
+            grow(position + size + 4);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        long lsn = ++lastLsn;
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putLong(position + 8, lsn);
+        buffer.put(position + RECORD_HEADER, payload, 0, length);
+        int start = position;
+        position += size;
+        terminate();
+        buffer.putInt(start, length); // last, so a torn record never looks complete
+        appends.incrementAndGet();
+        bytes.addAndGet(size);
+        return lsn;
+    }
+
+    /**
+     * Waits until the record {@code lsn}, and so every record before it, is on disk.
+     */
+    public void sync(long lsn) throws IOException
+    {
+        flushLock.lock();
+        try {
+            while (durableLsn < lsn) {
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                    continue;
+                }
+                // lead a force of everything appended so far
+                flushing = true;
+                flushLock.unlock();
+                long target;
+                int from;
+                int to;
+                int forcedEpoch;
+                MappedByteBuffer b;
+                synchronized (this) { // the same lock order as reset
+                    target = lastLsn;
+                    to = position;
+                    b = buffer;
+                    flushLock.lock();
+                    from = forcedPosition;
+                    forcedEpoch = epoch;
+                    flushLock.unlock();
+                }
+                long start = System.nanoTime();
+                try {
+                    if (to > from) {
+                        b.force(from, to - from);
+                    }
+                } catch (UncheckedIOException e) {
+                    throw e.getCause(); // how a mapped buffer reports a failed write
+                } finally {
+                    forces.incrementAndGet();
+                    forceNanos.addAndGet(System.nanoTime() - start);
+                    flushLock.lock();
+                    flushing = false;
+                    flushed.signalAll();
+                }
+                durableLsn = Math.max(durableLsn, target);
+                if (epoch == forcedEpoch) {
+                    forcedPosition = Math.max(forcedPosition, to);
+                }
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Empties the log once a snapshot holds everything in it. LSNs keep growing, and the
+     * records appended so far count as durable.
+     */
+    public synchronized void reset()
+    {
+        position = HEADER;
+        terminate();
+        buffer.force(0, HEADER + 4);
+        flushLock.lock();
+        try {
+            durableLsn = lastLsn;
+            forcedPosition = HEADER;
+            epoch++;
+            flushed.signalAll();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes of records in the log
+     */
+    public synchronized int size()
+    {
+        return position - HEADER;
+    }
+
+    public synchronized long lastLsn()
+    {
+        return lastLsn;
+    }
+
+    public String stats()
+    {
+        long f = forces.get();
+        return "journal: records " + appends.get() + " bytes " + bytes.get() + " forces " + f +
+               String.format(" (%.1f records/force)", f == 0 ? 0.0 : (double) appends.get() / f) +
+               " force avg " + (f == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(forceNanos.get() / f)) + "us";
+    }
+
+    public synchronized void close() throws IOException
+    {
+        buffer.force();
+        channel.close();
+    }
+
+    // the length 0 that ends the log
+    private void terminate()
+    {
+        if (position + 4 <= buffer.capacity()) {
+            buffer.putInt(position, 0);
+        }
+    }
+
+    private void grow(long needed) throws IOException
+    {
+        long size = buffer.capacity();
+        while (size < needed) {
+            size *= 2;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("journal is full");
+        }
+        buffer.force(); // the new mapping starts with everything written through the old one on disk
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds.
+ *
+ * Values below 128 have a bucket each; above that every power of two is split into 64
+ * buckets, so a recorded value is off by less than 1/64 (about 1.6%) wherever it falls, in
+ * a fixed array of a few thousand counters. Any number of threads may record concurrently.
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKETS = 64;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR + (63 - 7) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos)
+    {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos)) {
+        }
+    }
+
+    /**
+     * Adds every value recorded in {@code other} to this histogram.
+     */
+    public void add(LatencyHistogram other)
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        long m;
+        long o = other.max.get();
+        while (o > (m = max.get()) && !max.compareAndSet(m, o)) {
+        }
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public long count()
+    {
+        return count.get();
+    }
+
+    public long max()
+    {
+        return max.get();
+    }
+
+    public long mean()
+    {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the smallest recorded value (to the histogram's precision) such that
+     *         {@code percentile} percent of the values are at most that large, or 0 if empty
+     */
+    public long percentile(double percentile)
+    {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * count, mean, p50, p99, p99.9 and max, in microseconds.
+     */
+    public String summary()
+    {
+        return "count " + count() + " mean " + micros(mean()) + "us p50 " + micros(percentile(50)) +
+               "us p99 " + micros(percentile(99)) + "us p999 " + micros(percentile(99.9)) + "us max " + micros(max()) + "us";
+    }
+
+    private static long micros(long nanos)
+    {
+        return nanos / 1000;
+    }
+
+    static int index(long value)
+    {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6; // value >>> shift is in [64, 128)
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    // largest value that falls into bucket i
+    static long highestValue(int i)
+    {
+        if (i < LINEAR) {
+            return i;
+        }
+        int shift = (i - LINEAR) / SUB_BUCKETS + 1;
+        long sub = (i - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Replays the scenarios in cases/*.txt as load against the flight service.
+ *
+ * Usage: java LoadGenerator [-cases dir|file] [-users n] [-think ms] [-duration s] [-rampup s]
+ *                           [-host host] [-port port | -local]
+ *
+ * Every virtual user takes the commands of one user of one scenario (round robin over all
+ * of them) and runs them in a loop until the duration is over, waiting a random think time
+ * (exponentially distributed around -think) between commands. Users are started evenly over
+ * the ramp-up period. By default they talk to a {@link FlightServer}; with -local each one
+ * runs its own {@link Query} in this JVM.
+ *
+ * So that repetitions do not collide, every pass of a user gets fresh usernames, and the
+ * reservation ids of pay and cancel are mapped, in order of first use, to the ids booked
+ * in the same pass.
+ *
+ * At the end the latency percentiles, throughput and failure counts of every command type
+ * are printed. A failure is any "Booking failed", "Failed to ..." or "Error" response,
+ * whatever its cause. With -local the counters of the {@link TransactionRunner} follow, per
+ * transaction type: attempts, retries, deadlocks and transactions given up after retrying.
+ * Against a server, the same counters are in its metrics report.
+ */
+public class LoadGenerator
+{
+    private static final String BOOKED = "Booked flight(s), reservation ID: ";
+
+    private final List<Scenario.User> scripts;
+    private final int users;
+    private final long thinkMillis;
+    private final long durationNanos;
+    private final long rampUpNanos;
+    private final String host;
+    private final int port;
+    private final boolean local;
+
+    // per command type
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> failures = new ConcurrentHashMap<>();
+    private final AtomicLong errors = new AtomicLong();
+    // the transactions of the local sessions, null until one is open or without -local
+    private volatile TransactionRunner runner;
+    private final String run = Long.toString(System.currentTimeMillis() / 1000 % (36L * 36 * 36 * 36), 36);
+
+    /**
+     * One session with the service.
+     */
+    interface Session
+    {
+        String execute(String command) throws Exception;
+
+        void close() throws Exception;
+    }
+
+    public LoadGenerator(List<Scenario.User> scripts, int users, long thinkMillis, long durationSeconds, long rampUpSeconds,
+                         String host, int port, boolean local)
+    {
+        this.scripts = scripts;
+        this.users = users;
+        this.thinkMillis = thinkMillis;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.rampUpNanos = TimeUnit.SECONDS.toNanos(rampUpSeconds);
+        this.host = host;
+        this.port = port;
+        this.local = local;
+    }
+
+    /**
+     * Runs the load and prints the report.
+     */
+    public void run() throws Exception
+    {
+        final long start = System.nanoTime();
+        ExecutorService executor = FlightServer.newSessionExecutor();
+        for (int u = 0; u < users; u++) {
+            final int user = u;
+            executor.execute(new Runnable() {
+                public void run() {
+                    virtualUser(user, start);
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(durationNanos + TimeUnit.MINUTES.toNanos(5), TimeUnit.NANOSECONDS);
+        report(System.nanoTime() - start);
+    }
+
+    private void virtualUser(int user, long start)
+    {
+        List<String> script = scripts.get(user % scripts.size()).cmds();
+        long end = start + durationNanos;
+        sleepUntil(start + (users <= 1 ? 0 : rampUpNanos * user / (users - 1)));
+
+        Session session = null;
+        try {
+            session = open();
+            for (int pass = 0; System.nanoTime() < end; pass++) {
+                Map<String, String> names = new HashMap<>();
+                Map<String, String> rids = new HashMap<>();
+                List<String> booked = new ArrayList<>();
+                for (String command : script) {
+                    if (System.nanoTime() >= end) {
+                        break;
+                    }
+                    String[] tokens = FlightService.tokenize(command.trim());
+                    if (tokens.length == 0 || tokens[0].equals(Scenario.RESTART)) {
+                        continue;
+                    }
+                    String type = tokens[0];
+                    String rewritten = rewrite(tokens, user, pass, names, rids, booked);
+
+                    long t0 = System.nanoTime();
+                    String response = session.execute(rewritten);
+                    histogram(type).record(System.nanoTime() - t0);
+
+                    if (response.startsWith(BOOKED)) {
+                        booked.add(response.substring(BOOKED.length()).trim());
+                    } else if (response.startsWith("Failed") || response.startsWith("Booking failed") || response.startsWith("Error")) {
+                        failures.computeIfAbsent(type, k -> new AtomicLong()).incrementAndGet();
+                    }
+                    if (response.equals("Goodbye\n")) {
+                        session.close();
+                        session = open();
+                    } else {
+                        think();
+                    }
+                }
+            }
+        } catch (Exception e) {
+            errors.incrementAndGet();
+        } finally {
+            if (session != null) {
+                try {
+                    session.close();
+                } catch (Exception e) {}
+            }
+        }
+    }
+
+    // gives the command this pass's usernames and reservation ids
+    private String rewrite(String[] tokens, int user, int pass, Map<String, String> names, Map<String, String> rids, List<String> booked)
+    {
+        String type = tokens[0];
+        if ((type.equals("create") || type.equals("login")) && tokens.length > 1) {
+            String name = names.get(tokens[1]);
+            if (name == null) {
+                // at most 20 characters, the width of Users.username
+                name = "lg" + run + "_" + Integer.toString(user, 36) + "_" + Integer.toString(pass, 36) + "_" +
+                       Integer.toString(names.size(), 36);
+                names.put(tokens[1], name);
+            }
+            tokens[1] = name;
+        } else if ((type.equals("pay") || type.equals("cancel")) && tokens.length > 1) {
+            String rid = rids.get(tokens[1]);
+            if (rid == null && rids.size() < booked.size()) {
+                rid = booked.get(rids.size());
+                rids.put(tokens[1], rid);
+            }
+            if (rid != null) {
+                tokens[1] = rid;
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String t : tokens) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            if (t.indexOf(' ') >= 0) {
+                sb.append('"').append(t).append('"');
+            } else {
+                sb.append(t);
+            }
+        }
+        return sb.toString();
+    }
+
+    private Session open() throws Exception
+    {
+        if (local) {
+            final Query q = new Query(FlightService.DBCONFIG_FILENAME);
+            q.openConnection();
+            runner = q.transactionRunner();
+            return new Session() {
+                public String execute(String command) {
+                    return FlightService.execute(q, command);
+                }
+
+                public void close() throws Exception {
+                    q.closeConnection();
+                }
+            };
+        }
+        final FlightClient client = new FlightClient(host, port);
+        return new Session() {
+            public String execute(String command) throws IOException {
+                return client.execute(command);
+            }
+
+            public void close() throws IOException {
+                client.close();
+            }
+        };
+    }
+
+    private LatencyHistogram histogram(String type)
+    {
+        return latencies.computeIfAbsent(type, k -> new LatencyHistogram());
+    }
+
+    private void think() throws InterruptedException
+    {
+        if (thinkMillis > 0) {
+            double u = ThreadLocalRandom.current().nextDouble();
+            Thread.sleep((long) (-Math.log(1 - u) * thinkMillis));
+        }
+    }
+
+    private static void sleepUntil(long deadline)
+    {
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void report(long elapsedNanos)
+    {
+        double seconds = elapsedNanos / 1e9;
+        LatencyHistogram all = new LatencyHistogram();
+        long failed = 0;
+        System.out.println(users + " user(s), " + scripts.size() + " script(s), " + String.format("%.1f", seconds) + " s");
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<>(latencies).entrySet()) {
+            LatencyHistogram h = e.getValue();
+            AtomicLong f = failures.get(e.getKey());
+            long n = f == null ? 0 : f.get();
+            failed += n;
+            all.add(h);
+            System.out.println(String.format("%-13s %8.1f/s  failed %6d (%5.2f%%)  ", e.getKey(), h.count() / seconds, n,
+                                             h.count() == 0 ? 0.0 : 100.0 * n / h.count()) + h.summary());
+        }
+        System.out.println(String.format("%-13s %8.1f/s  failed %6d (%5.2f%%)  ", "all", all.count() / seconds, failed,
+                                         all.count() == 0 ? 0.0 : 100.0 * failed / all.count()) + all.summary());
+        System.out.println("sessions lost to errors: " + errors.get());
+        if (runner != null) {
+            System.out.print(runner.stats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-local")) {
+                options.put("local", "true");
+            } else if (args[i].startsWith("-") && i + 1 < args.length) {
+                options.put(args[i].substring(1), args[++i]);
+            } else {
+                System.err.println("unexpected argument " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        List<Scenario.User> scripts = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(Paths.get(options.getOrDefault("cases", "cases")))) {
+            for (Path p : paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                scripts.addAll(Scenario.parse(p.toString()));
+            }
+        }
+
+        LoadGenerator generator = new LoadGenerator(scripts,
+                                                    Integer.parseInt(options.getOrDefault("users", "10")),
+                                                    Long.parseLong(options.getOrDefault("think", "100")),
+                                                    Long.parseLong(options.getOrDefault("duration", "60")),
+                                                    Long.parseLong(options.getOrDefault("rampup", "10")),
+                                                    options.getOrDefault("host", "localhost"),
+                                                    Integer.parseInt(options.getOrDefault("port", "9414")),
+                                                    options.containsKey("local"));
+        try {
+            generator.run();
+        } finally {
+            ConnectionPool.shutdownAll();
+        }
+    }
+}
@@ -0,0 +1,437 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Instrumentation of the flight service, shared by the whole JVM.
+ *
+ * Every command (and so every transaction_* method, see {@link FlightService#execute}) and
+ * every prepared statement is an {@link Operation} that counts its calls and errors, the
+ * database round trips and the rows fetched on its behalf, and keeps a {@link LatencyHistogram}
+ * of its latencies. Statements are measured where they are run, through
+ * {@link #executeQuery}, {@link #executeUpdate} and {@link #execute}, and the rows read from
+ * them are reported with {@link #fetched}. A command counts as failed when its transaction
+ * does, see {@link #failed()}; a statement error that is retried or expected does not fail the
+ * command. Components register their own statistics (pool, caches, transactions) with
+ * {@link #register}, and administrative operations with {@link #registerAdmin}.
+ *
+ * Everything is published as JMX MBeans in the "flightservice" domain, and
+ * {@link #configure(Properties)} can dump a text report periodically. Recording is a few
+ * uncontended counter updates per call, so it stays on; flightservice.metrics = false turns it
+ * off.
+ */
+public class Metrics
+{
+    private static final String DOMAIN = "flightservice";
+
+    private static volatile boolean enabled = true;
+    private static boolean configured;
+    private static ScheduledExecutorService dumper;
+
+    private static final Map<String, Operation> commands = new ConcurrentHashMap<>();
+    private static final Map<String, Operation> statements = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<Object>> sources = new ConcurrentHashMap<>();
+
+    // the command each thread is running
+    private static final ThreadLocal<Call> CALL = ThreadLocal.withInitial(Call::new);
+
+    /**
+     * Attributes of an {@link Operation}, latencies in microseconds.
+     */
+    public interface OperationMXBean
+    {
+        long getCalls();
+
+        long getErrors();
+
+        long getRoundTrips();
+
+        long getRowsFetched();
+
+        long getMeanMicros();
+
+        long getP50Micros();
+
+        long getP99Micros();
+
+        long getP999Micros();
+
+        long getMaxMicros();
+
+        void reset();
+    }
+
+    /**
+     * Attribute of a registered statistics source.
+     */
+    public interface SourceMXBean
+    {
+        String getValue();
+    }
+
+    /**
+     * Counters and latencies of one command or statement.
+     */
+    public static class Operation implements OperationMXBean
+    {
+        private final String name;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder roundTrips = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private Operation(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Starts timing a call of this command on the current thread; the statements it runs
+         * until {@link Call#end()} are counted towards it.
+         */
+        public Call begin() {
+            Call call = CALL.get();
+            if (call.depth++ == 0) {
+                call.operation = enabled ? this : null;
+                call.start = System.nanoTime();
+                call.roundTrips = 0;
+                call.rows = 0;
+                call.failed = false;
+            }
+            return call;
+        }
+
+        void record(long nanos, long roundTrips, long rows, boolean failed) {
+            calls.increment();
+            if (failed) {
+                errors.increment();
+            }
+            this.roundTrips.add(roundTrips);
+            this.rows.add(rows);
+            latency.record(nanos);
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getRoundTrips() {
+            return roundTrips.sum();
+        }
+
+        public long getRowsFetched() {
+            return rows.sum();
+        }
+
+        public long getMeanMicros() {
+            return latency.mean() / 1000;
+        }
+
+        public long getP50Micros() {
+            return latency.percentile(50) / 1000;
+        }
+
+        public long getP99Micros() {
+            return latency.percentile(99) / 1000;
+        }
+
+        public long getP999Micros() {
+            return latency.percentile(99.9) / 1000;
+        }
+
+        public long getMaxMicros() {
+            return latency.max() / 1000;
+        }
+
+        public void reset() {
+            calls.reset();
+            errors.reset();
+            roundTrips.reset();
+            rows.reset();
+            latency.reset();
+        }
+
+        @Override
+        public String toString() {
+            long n = Math.max(1, calls.sum());
+            return name + ": errors " + errors.sum() +
+                   " round trips " + roundTrips.sum() + String.format(" (%.1f/call)", (double) roundTrips.sum() / n) +
+                   " rows " + rows.sum() + String.format(" (%.1f/call) ", (double) rows.sum() / n) + latency.summary();
+        }
+    }
+
+    /**
+     * The command in progress on one thread. Reused for every command of the thread; nested
+     * commands count towards the outermost one.
+     */
+    public static final class Call
+    {
+        private Operation operation;
+        private int depth;
+        private long start;
+        private long roundTrips;
+        private long rows;
+        private boolean failed;
+
+        public void end() {
+            if (--depth == 0 && operation != null) {
+                operation.record(System.nanoTime() - start, roundTrips, rows, failed);
+                operation = null;
+            }
+        }
+    }
+
+    private static class Source implements SourceMXBean
+    {
+        private final Supplier<Object> supplier;
+
+        Source(Supplier<Object> supplier) {
+            this.supplier = supplier;
+        }
+
+        public String getValue() {
+            return String.valueOf(supplier.get());
+        }
+    }
+
+    /**
+     * Reads flightservice.metrics, metrics_dump_s and metrics_file. Only the first call per
+     * JVM has an effect.
+     */
+    public static synchronized void configure(Properties configProps) throws IOException
+    {
+        if (configured) {
+            return;
+        }
+        configured = true;
+        enabled = Boolean.parseBoolean(configProps.getProperty("flightservice.metrics", "true").trim());
+        long period = Long.parseLong(configProps.getProperty("flightservice.metrics_dump_s", "0").trim());
+        if (enabled && period > 0) {
+            String file = configProps.getProperty("flightservice.metrics_file", "").trim();
+            startDump(file.isEmpty() ? System.err : new PrintStream(new FileOutputStream(file, true), true), period);
+        }
+    }
+
+    public static boolean enabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Returns the operation of command {@code verb}, creating and publishing it on first use.
+     */
+    public static Operation command(String verb)
+    {
+        return commands.computeIfAbsent(verb, k -> publish(new Operation(k), "Command"));
+    }
+
+    /**
+     * Publishes the statistics {@code supplier} returns under {@code name}, in the MBeans and
+     * in the report. A later registration under the same name is ignored.
+     */
+    public static void register(String name, Supplier<Object> supplier)
+    {
+        if (sources.putIfAbsent(name, supplier) == null) {
+            publish(new Source(supplier), "Stats", name);
+        }
+    }
+
+    /**
+     * Publishes {@code impl} as an MXBean of type "Admin" under {@code name}, for operations
+     * run from a JMX console. A later registration under the same name is ignored.
+     */
+    public static <T> void registerAdmin(String name, Class<T> type, T impl)
+    {
+        publish(new StandardMBean(impl, type, true), "Admin", name);
+    }
+
+    /**
+     * Runs {@code ps.executeQuery()}, measured as statement {@code sql}. The caller reports
+     * the rows it reads with {@link #fetched}.
+     */
+    public static ResultSet executeQuery(PreparedStatement ps, String sql) throws SQLException
+    {
+        if (!enabled) {
+            return ps.executeQuery();
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ResultSet rs = ps.executeQuery();
+            failed = false;
+            return rs;
+        } finally {
+            executed(sql, start, failed);
+        }
+    }
+
+    /**
+     * Runs {@code ps.executeUpdate()}, measured as statement {@code sql}.
+     */
+    public static int executeUpdate(PreparedStatement ps, String sql) throws SQLException
+    {
+        if (!enabled) {
+            return ps.executeUpdate();
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            int count = ps.executeUpdate();
+            failed = false;
+            return count;
+        } finally {
+            executed(sql, start, failed);
+        }
+    }
+
+    /**
+     * Runs {@code ps.execute()}, e.g. a stored procedure call, measured as statement {@code sql}.
+     */
+    public static boolean execute(PreparedStatement ps, String sql) throws SQLException
+    {
+        if (!enabled) {
+            return ps.execute();
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean result = ps.execute();
+            failed = false;
+            return result;
+        } finally {
+            executed(sql, start, failed);
+        }
+    }
+
+    /**
+     * Counts {@code rows} read from a result of statement {@code sql}.
+     */
+    public static void fetched(String sql, int rows)
+    {
+        if (!enabled) {
+            return;
+        }
+        statement(sql).rows.add(rows);
+        Call call = CALL.get();
+        if (call.operation != null) {
+            call.rows += rows;
+        }
+    }
+
+    /**
+     * Counts the command in progress on this thread as failed: its transaction has failed
+     * for good, see {@link TransactionRunner#retry}.
+     */
+    public static void failed()
+    {
+        CALL.get().failed = true;
+    }
+
+    /**
+     * Every command, statement and registered source, one per line.
+     */
+    public static String report()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Operation op : new TreeMap<>(commands).values()) {
+            sb.append("command ").append(op).append('\n');
+        }
+        for (Operation op : new TreeMap<>(statements).values()) {
+            if (op.getCalls() > 0) {
+                sb.append("statement ").append(op).append('\n');
+            }
+        }
+        // the sources' statistics name themselves
+        for (Supplier<Object> source : new TreeMap<>(sources).values()) {
+            String value = String.valueOf(source.get());
+            sb.append(value);
+            if (!value.endsWith("\n")) {
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Prints {@link #report()} to {@code out} every {@code periodSeconds} seconds, from a
+     * daemon thread.
+     */
+    public static synchronized void startDump(final PrintStream out, long periodSeconds)
+    {
+        if (dumper != null) {
+            dumper.shutdownNow();
+        }
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> out.print("--- metrics " + LocalDateTime.now() + "\n" + report()),
+                                   periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    private static <T> T publish(T bean, String type)
+    {
+        return publish(bean, type, bean instanceof Operation ? ((Operation) bean).name() : type);
+    }
+
+    private static <T> T publish(T bean, String type, String name)
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(bean, objectName);
+            }
+        } catch (Exception e) {} // metrics stay available through report()
+        return bean;
+    }
+
+    // SQL with whitespace collapsed, cut to a readable length
+    private static String label(String sql)
+    {
+        String s = sql.trim().replaceAll("\\s+", " ");
+        return s.length() <= 80 ? s : s.substring(0, 77) + "...";
+    }
+
+    private static Operation statement(String sql)
+    {
+        Operation op = statements.get(sql);
+        return op != null ? op : statements.computeIfAbsent(sql, k -> publish(new Operation(label(k)), "Statement"));
+    }
+
+    // one execution of sql that started at start
+    private static void executed(String sql, long start, boolean failed)
+    {
+        statement(sql).record(System.nanoTime() - start, 1, 0, failed);
+        Call call = CALL.get();
+        if (call.operation != null) {
+            call.roundTrips++;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Applies the schema migrations in migrations/ to the database of dbconn.properties.
+ *
+ * Usage: java Migrate [-dir migrations] [-plans dir] [-list]
+ *
+ * A migration is a file V[version]__[name].sql, run after createTables.sql. Its batches are
+ * separated by lines holding only GO, as in createTables.sql. Every pending migration runs in
+ * a transaction of its own, in version order, and is recorded in the SchemaVersion table in
+ * the same transaction, so a failed migration leaves nothing behind and is retried on the
+ * next run. -list only prints the applied and pending migrations.
+ *
+ * With -plans the estimated plans of the service's main queries are captured before and
+ * after migrating, written to dir/before and dir/after as .sqlplan files (which SSMS opens),
+ * and the data access operators of each plan are printed, e.g.
+ *   direct before: Table Scan Flights
+ *   direct after:  Index Seek Flights.Flights_origin
+ * so that scans left after the migration stand out.
+ */
+public class Migrate
+{
+    private static final String CREATE_SCHEMA_VERSION =
+        "IF OBJECT_ID('SchemaVersion') IS NULL " +
+        "CREATE TABLE SchemaVersion(version INT PRIMARY KEY, name VARCHAR(100) NOT NULL, applied DATETIME2 NOT NULL DEFAULT SYSUTCDATETIME())";
+
+    private static final String APPLIED_VERSIONS = "SELECT version FROM SchemaVersion";
+
+    private static final String RECORD_VERSION = "INSERT INTO SchemaVersion (version, name) VALUES (?, ?)";
+
+    private static final Pattern MIGRATION = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+    private static final Pattern GO = Pattern.compile("^\\s*GO\\s*$", Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+
+    // the operators that read a table or index, and the object each one reads
+    private static final Pattern ACCESS = Pattern.compile(
+        "<RelOp [^>]*PhysicalOp=\"(Table Scan|Index Scan|Clustered Index Scan|Index Seek|Clustered Index Seek|RID Lookup|Key Lookup)\"" +
+        ".*?<Object [^>]*?Table=\"\\[([^\\]]*)\\]\"(?: Index=\"\\[([^\\]]*)\\]\")?", Pattern.DOTALL);
+
+    /**
+     * The queries whose plans are captured, with sample arguments for their parameters.
+     */
+    static Map<String, String> sampleQueries()
+    {
+        Map<String, String> queries = new LinkedHashMap<>();
+        queries.put("direct", bind(JdbcBackend.DIRECT_SEARCH, 10, "Seattle WA", "Boston MA", 1));
+        queries.put("indirect", bind(JdbcBackend.INDIRECT_SEARCH, 10, "Seattle WA", "Boston MA", 1));
+        queries.put("reservations", bind(JdbcBackend.RESERVATIONS_WITH_FLIGHTS, "user1"));
+        queries.put("sameDay", bind(JdbcBackend.SAME_DAY_RESERVATION, "user1", 1));
+        queries.put("bookedDays", bind(JdbcBackend.BOOKED_DAYS, "user1"));
+        queries.put("seatCountCheck", SeatCountCheck.MISMATCHES);
+        return queries;
+    }
+
+    /**
+     * One migration file.
+     */
+    static final class Migration
+    {
+        final int version;
+        final String name;
+        final Path file;
+
+        Migration(int version, String name, Path file) {
+            this.version = version;
+            this.name = name;
+            this.file = file;
+        }
+
+        /**
+         * @return the batches of the file, without the GO lines
+         */
+        List<String> batches() throws IOException {
+            List<String> batches = new ArrayList<>();
+            for (String batch : GO.split(new String(Files.readAllBytes(file), StandardCharsets.UTF_8))) {
+                if (!batch.replaceAll("--[^\n]*", "").trim().isEmpty()) {
+                    batches.add(batch);
+                }
+            }
+            return batches;
+        }
+    }
+
+    /**
+     * @return the migrations in {@code dir}, by version
+     */
+    public static List<Migration> find(Path dir) throws IOException
+    {
+        TreeMap<Integer, Migration> migrations = new TreeMap<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher m = MIGRATION.matcher(file.getFileName().toString());
+                if (m.matches()) {
+                    Migration migration = new Migration(Integer.parseInt(m.group(1)), m.group(2), file);
+                    Migration other = migrations.put(migration.version, migration);
+                    if (other != null) {
+                        throw new IOException("two migrations with version " + migration.version + ": " + other.file + " and " + file);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(migrations.values());
+    }
+
+    /**
+     * @return the versions recorded in SchemaVersion, creating the table if needed
+     */
+    public static List<Integer> applied(Connection conn) throws SQLException
+    {
+        List<Integer> versions = new ArrayList<>();
+        try (Statement st = conn.createStatement()) {
+            st.executeUpdate(CREATE_SCHEMA_VERSION);
+            ResultSet rs = st.executeQuery(APPLIED_VERSIONS);
+            while (rs.next()) {
+                versions.add(rs.getInt("version"));
+            }
+            rs.close();
+        }
+        return versions;
+    }
+
+    /**
+     * Runs {@code migration} and records it, in one transaction.
+     */
+    public static void apply(Connection conn, Migration migration) throws SQLException, IOException
+    {
+        List<String> batches = migration.batches();
+        conn.setAutoCommit(false);
+        try (Statement st = conn.createStatement()) {
+            for (String batch : batches) {
+                st.execute(batch);
+            }
+            try (PreparedStatement ps = conn.prepareStatement(RECORD_VERSION)) {
+                ps.setInt(1, migration.version);
+                ps.setString(2, migration.name);
+                ps.executeUpdate();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException e1) {}
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Returns the estimated plan of {@code sql} as showplan XML, without running it.
+     */
+    public static String plan(Connection conn, String sql) throws SQLException
+    {
+        try (Statement st = conn.createStatement()) {
+            st.execute("SET SHOWPLAN_XML ON");
+            try {
+                StringBuilder xml = new StringBuilder();
+                ResultSet rs = st.executeQuery(sql);
+                while (rs.next()) {
+                    xml.append(rs.getString(1));
+                }
+                rs.close();
+                return xml.toString();
+            } finally {
+                st.execute("SET SHOWPLAN_XML OFF");
+            }
+        }
+    }
+
+    /**
+     * @return the table and index reads of a plan, e.g. "Index Seek Flights.Flights_origin"
+     */
+    public static List<String> accesses(String planXml)
+    {
+        List<String> accesses = new ArrayList<>();
+        Matcher m = ACCESS.matcher(planXml);
+        while (m.find()) {
+            accesses.add(m.group(1) + " " + m.group(2) + (m.group(3) == null ? "" : "." + m.group(3)));
+        }
+        return accesses;
+    }
+
+    /**
+     * Replaces the ? parameters of {@code sql} by literals, in order.
+     */
+    static String bind(String sql, Object... args)
+    {
+        StringBuilder sb = new StringBuilder();
+        int arg = 0;
+        for (char c : sql.toCharArray()) {
+            if (c != '?') {
+                sb.append(c);
+            } else if (args[arg] instanceof String) {
+                sb.append('\'').append(((String) args[arg++]).replace("'", "''")).append('\'');
+            } else {
+                sb.append(args[arg++]);
+            }
+        }
+        return sb.toString();
+    }
+
+    // captures the plans of the sample queries into dir; returns their accesses by query
+    private static Map<String, List<String>> capturePlans(Connection conn, Path dir) throws SQLException, IOException
+    {
+        Files.createDirectories(dir);
+        Map<String, List<String>> accesses = new LinkedHashMap<>();
+        for (Map.Entry<String, String> q : sampleQueries().entrySet()) {
+            String xml;
+            try {
+                xml = plan(conn, q.getValue());
+            } catch (SQLException e) {
+                accesses.put(q.getKey(), List.of("no plan: " + e.getMessage()));
+                continue; // e.g. a table the query reads does not exist yet
+            }
+            Files.write(dir.resolve(q.getKey() + ".sqlplan"), xml.getBytes(StandardCharsets.UTF_8));
+            accesses.put(q.getKey(), accesses(xml));
+        }
+        return accesses;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Path dir = Paths.get("migrations");
+        Path plans = null;
+        boolean list = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-dir")) {
+                dir = Paths.get(args[++i]);
+            } else if (args[i].equals("-plans")) {
+                plans = Paths.get(args[++i]);
+            } else if (args[i].equals("-list")) {
+                list = true;
+            } else {
+                System.err.println("Usage: java Migrate [-dir migrations] [-plans dir] [-list]");
+                System.exit(1);
+            }
+        }
+
+        Properties configProps = new Properties();
+        configProps.load(new FileInputStream(FlightService.DBCONFIG_FILENAME));
+        ConnectionPool pool = ConnectionPool.shared(configProps);
+        ConnectionPool.PooledConnection pc = pool.borrow();
+        try {
+            Connection conn = pc.connection();
+            List<Integer> applied = applied(conn);
+            List<Migration> pending = new ArrayList<>();
+            for (Migration m : find(dir)) {
+                boolean done = applied.contains(m.version);
+                if (list) {
+                    System.out.println((done ? "applied " : "pending ") + m.version + " " + m.name);
+                }
+                if (!done) {
+                    pending.add(m);
+                }
+            }
+            if (list) {
+                return;
+            }
+
+            Map<String, List<String>> before = plans == null ? null : capturePlans(conn, plans.resolve("before"));
+            for (Migration m : pending) {
+                long start = System.nanoTime();
+                apply(conn, m);
+                System.out.println("Applied " + m.version + " " + m.name + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+            }
+            System.out.println(pending.isEmpty() ? "Schema is up to date" : pending.size() + " migration(s) applied");
+
+            if (plans != null) {
+                Map<String, List<String>> after = capturePlans(conn, plans.resolve("after"));
+                for (String query : after.keySet()) {
+                    System.out.println(query + " before: " + String.join(", ", before.get(query)));
+                    System.out.println(query + " after:  " + String.join(", ", after.get(query)));
+                }
+                System.out.println("Plans written to " + plans);
+            }
+        } finally {
+            pool.release(pc, false);
+            ConnectionPool.shutdownAll();
+        }
+    }
+}
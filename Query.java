@@ -1,118 +1,86 @@
 import java.io.FileInputStream;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Runs queries against a back-end database
  */
 public class Query
 {
+    // the columns of a flight that flightChanged applies
+    private static final String FLIGHT_CHANGE = "SELECT canceled, actual_time, capacity, price FROM Flights WHERE fid = ?";
+
+    // null when the session was given its properties, see Query(Properties)
     private String configFilename;
     private Properties configProps = new Properties();
 
-    private String jSQLDriver;
-    private String jSQLUrl;
-    private String jSQLUser;
-    private String jSQLPassword;
-
-    // DB Connection
-    private Connection conn;
-
-    // Logged In User
-    private String username; // customer username is unique
-
-    // Canned queries
-    private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
-    private PreparedStatement checkFlightCapacityStatement;
-
-    private static final String CHECK_USER = "SELECT * FROM Users WHERE username = ?";
-    private PreparedStatement checkUserStatement;
-
-    private static final String INSERT_USER = "INSERT INTO Users VALUES (?, ?, ?)";
-    private PreparedStatement insertUserStatement;
-
-    private static final String DIRECT_SEARCH =
-        "SELECT TOP (?) * " +
-        "FROM Flights " +
-        "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? AND canceled = 0 " +
-        "ORDER BY actual_time, fid";
-    private PreparedStatement directSearchStatement;
-
-    private static final String INDIRECT_SEARCH =
-        "SELECT TOP (?) f1.fid fid1, f1.day_of_month day1, f1.carrier_id carrier1, f1.flight_num num1, f1.origin_city origin1, f1.dest_city dest1, f1.actual_time time1, f1.capacity capacity1, f1.price price1, " +
-        "f2.fid fid2, f1.day_of_month day2, f2.carrier_id carrier2, f2.flight_num num2, f2.origin_city origin2, f2.dest_city dest2, f2.actual_time time2, f2.capacity capacity2, f2.price price2 " +
-        "FROM Flights f1, Flights f2 " +
-        "WHERE f1.origin_city = ? AND f1.dest_city = f2.origin_city AND f2.dest_city = ? AND f1.day_of_month = ? AND f1.day_of_month = f2.day_of_month AND f1.canceled = 0 AND f2.canceled = 0 "+
-        "ORDER BY (f1.actual_time + f2.actual_time), f1.fid, f2.fid";
-    private PreparedStatement indirectSearchStatement;
-
-    private static final String CHECK_FLIGHT = "SELECT * " +
-                                               "FROM Flights " +
-                                               "WHERE fid = ?";
-    private PreparedStatement checkFlightStatement;
-
-    private static final String CHECK_RESERVATION_BY_USERNAME = "SELECT * " +
-                                                                "FROM Reservations " +
-                                                                "WHERE username = ? " +
-                                                                "ORDER BY rid";
-    private PreparedStatement checkReservationByUsernameStatement;
-
-    private static final String COUNT_SEAT = "SELECT ISNULL(" +
-                                             "(SELECT COUNT(*) " +
-                                             "FROM ((SELECT fid1 FROM Reservations) UNION ALL (SELECT fid2 FROM Reservations)) AS N " +
-                                             "WHERE N.fid1 = ? " +
-                                             "GROUP BY N.fid1), 0) AS count";
-
-    private PreparedStatement countSeatStatement;
+    // Users, flights, reservations and seat counts, see flightservice.backend
+    private StorageBackend backend;
 
-    private static final String INSERT_RESERVATION = "INSERT INTO Reservations VALUES(0, ?, ?, ?)";
-    private PreparedStatement insertReservationStatement;
+    // DB Connections, shared by all sessions, null with the memory backend
+    private ConnectionPool pool;
 
-    private static final String UPDATE_USER_BALANCE = "UPDATE Users SET balance = ? WHERE username = ?";
-    private PreparedStatement updateUserBalanceStatement;
+    // search from the shared in-memory index, see RouteIndex.current()
+    private boolean routeIndex;
 
-    private static final String UPDATE_RESERVATION_PAID = "UPDATE Reservations SET paid = 1 WHERE rid = ?";
-    private PreparedStatement updateReservationPaidStatement;
+    // applies changed Flights rows, shared by all sessions, null with the memory backend
+    private FlightChanges flightChanges;
 
-    private static final String CHECK_RESERVATION_BY_USERNAME_AND_RID = "SELECT * " +
-                                                                        "FROM Reservations " +
-                                                                        "WHERE username = ? AND rid =? ";
-    private PreparedStatement checkReservationByUsernameAndRidStatement;
+    // Search results, shared by all sessions, null when disabled
+    private SearchCache searchCache;
 
-    private static final String DELETE_RESERVATION = "DELETE FROM Reservations WHERE rid = ?";
-    private PreparedStatement deleteReservationStatement;
+    // flights read with reservations, null with the memory backend
+    private FlightCache flightCache;
 
-    // transactions
-    private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
-    private PreparedStatement beginTransactionStatement;
+    // Runs and retries transactions, shared by all sessions
+    private TransactionRunner runner;
 
-    private static final String COMMIT_SQL = "COMMIT TRANSACTION";
-    private PreparedStatement commitTransactionStatement;
+    // Logged In User
+    private String username; // customer username is unique
 
-    private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
-    private PreparedStatement rollbackTransactionStatement;
+    // true while consecutive searches share one transaction, see beginSearchBatch
+    private boolean searchBatch;
 
+    // run the one-hop leg of database searches next to the direct one, see searchDatabase
+    private boolean parallelSearch;
+    // the session's backend for those legs, and its last leg
+    private JdbcBackend legBackend;
+    private SearchLeg searchLeg;
+    private static ExecutorService searchLegs;
 
     //---------
     private boolean loggedIn = false;
     private List<Itinerary> itineraries = new ArrayList<>();
-    private static final int CANCEL = 0;
-    private static final int PAY = 1;
-
-    public class Flight
+    // bit (day - 1) is set when the logged in user has a reservation on that day of the month.
+    // Loaded at login and kept up to date by book and cancel. Only a hint: BookItinerary still
+    // checks the database, so a day booked from another session since login is caught there,
+    // and a set bit is read again from the database before a booking is refused, since another
+    // session may have canceled that day.
+    private int bookedDays;
+    private final ResponseRenderer renderer = new ResponseRenderer();
+
+    public static class Flight
     {
-        private int fid;
-        private int dayOfMonth;
-        private String carrierId;
-        private String flightNum;
-        private String originCity;
-        private String destCity;
-        private int time;
-        private int capacity;
-        private int price;
+        private final int fid;
+        private final int dayOfMonth;
+        private final String carrierId;
+        private final String flightNum;
+        private final String originCity;
+        private final String destCity;
+        private final int time;
+        private final int capacity;
+        private final int price;
 
         public Flight(int fid, int dayOfMonth, String carrierId, String flightNum, String originCity, String destCity, int time, int capacity, int price) {
             this.fid = fid;
@@ -129,9 +97,7 @@ public class Query
         @Override
         public String toString()
         {
-            return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId +
-                   " Number: " + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time +
-                   " Capacity: " + capacity + " Price: " + price + "\n";
+            return ResponseRenderer.appendFlight(new StringBuilder(160), this).toString();
         }
 
         public int getFid() {
@@ -146,20 +112,42 @@ public class Query
             return this.price;
         }
 
+        public int getCapacity() {
+            return this.capacity;
+        }
+
         public int getDay() {
             return dayOfMonth;
         }
+
+        public String getCarrierId() {
+            return carrierId;
+        }
+
+        public String getFlightNum() {
+            return flightNum;
+        }
+
+        public String getOriginCity() {
+            return originCity;
+        }
+
+        public String getDestCity() {
+            return destCity;
+        }
     }
 
-    public class Itinerary implements Comparable<Itinerary> {
-        private Flight f1;
-        private Flight f2;
-        private int size;
+    public static class Itinerary implements Comparable<Itinerary> {
+        private final Flight f1;
+        private final Flight f2;
+        private final int size;
+        private final int totalTime;
 
         private Itinerary(Flight f1, Flight f2, int size) {
             this.f1 = f1;
             this.f2 = f2;
             this.size = size;
+            this.totalTime = f1.getTime() + (f2==null ? 0 : f2.getTime());
         }
 
         public Itinerary(Flight f1, Flight f2) {
@@ -182,14 +170,33 @@ public class Query
             return size;
         }
 
+        public int getTotalTime() {
+            return this.totalTime;
+        }
+
+        /**
+         * Orders by total time, then direct before one-hop, then by fids. This is the order
+         * search results have always been printed in: direct flights come from the database
+         * sorted by (time, fid) and one-hop ones by (total time, fid1, fid2), and a stable sort
+         * on the total time alone kept the direct ones first.
+         */
         public int compareTo(Itinerary other) {
-            int thisTime = this.f1.getTime() + (this.f2==null ? 0 : this.f2.getTime());
-            int otherTime = other.first().getTime() + (other.second()==null ? 0 : other.second().getTime());
-            return thisTime - otherTime;
+            int c = Integer.compare(this.totalTime, other.totalTime);
+            if (c == 0) {
+                c = Integer.compare(this.size, other.size);
+            }
+            if (c == 0) {
+                c = Integer.compare(this.f1.getFid(), other.f1.getFid());
+            }
+            if (c == 0 && this.f2 != null) {
+                c = Integer.compare(this.f2.getFid(), other.f2.getFid());
+            }
+            return c;
         }
 
         public String toString() {
-            return this.f1.toString() + (this.f2==null ? "" : this.f2.toString());
+            StringBuilder sb = ResponseRenderer.appendFlight(new StringBuilder(320), this.f1);
+            return (this.f2==null ? sb : ResponseRenderer.appendFlight(sb, this.f2)).toString();
         }
 
 
@@ -200,35 +207,199 @@ public class Query
         this.configFilename = configFilename;
     }
 
+    /**
+     * A session on properties loaded once by the caller, e.g. a server that opens many
+     * sessions; they are only read.
+     */
+    public Query(Properties configProps)
+    {
+        this.configProps = configProps;
+    }
+
     /* Connection code to SQL Azure.  */
     public void openConnection() throws Exception
     {
-        configProps.load(new FileInputStream(configFilename));
+        if (configFilename != null) {
+            try (FileInputStream in = new FileInputStream(configFilename)) {
+                configProps.load(in);
+            }
+        }
+        Metrics.configure(configProps);
+
+        if (configProps.getProperty("flightservice.backend", "jdbc").trim().equals("memory")) {
+            /* no database: the memory backend searches its own index of the flights */
+            backend = InMemoryBackend.open(configProps);
+        } else {
+            /* sessions borrow connections from a pool shared by the whole JVM, one per transaction.
+               Pooled connections are in auto-commit mode whenever they are idle. */
+            pool = ConnectionPool.shared(configProps);
+            flightCache = FlightCache.shared(Integer.parseInt(configProps.getProperty("flightservice.flight_cache_size", "100000").trim()));
+            backend = new JdbcBackend(pool, flightCache, configProps);
+            Metrics.register("pool", pool::stats);
+
+            /* Flights is read-only, so searches are answered from an index loaded once per JVM */
+            if (Boolean.parseBoolean(configProps.getProperty("flightservice.route_index", "true").trim())) {
+                String snapshot = configProps.getProperty("flightservice.flight_snapshot", "").trim();
+                int connectionDepth = Integer.parseInt(configProps.getProperty("flightservice.connection_depth", "10").trim());
+                RouteIndex.shared(pool, snapshot.isEmpty() ? null : Paths.get(snapshot), connectionDepth);
+                routeIndex = true;
+                Metrics.register("routeIndex", () -> RouteIndex.current().stats());
+            }
+            parallelSearch = Boolean.parseBoolean(configProps.getProperty("flightservice.parallel_search", "false").trim());
+        }
+
+        runner = TransactionRunner.shared(configProps);
+
+        int searchCacheSize = Integer.parseInt(configProps.getProperty("flightservice.search_cache_size", "10000").trim());
+        if (searchCacheSize > 0) {
+            long ttl = Long.parseLong(configProps.getProperty("flightservice.search_cache_ttl_ms", "60000").trim());
+            searchCache = SearchCache.shared(searchCacheSize, ttl);
+            Metrics.register("searchCache", searchCache::stats);
+        }
+        Metrics.register("transactions", runner::stats);
+        if (pool != null) {
+            flightChanges = FlightChanges.shared(pool, routeIndex, searchCache, flightCache);
+        }
+    }
+
+    public void closeConnection() throws Exception
+    {
+        if (searchLeg != null) {
+            searchLeg.cancel();
+            searchLeg.result(); // the leg gives its connection back when it ends
+        }
+        backend.close();
+    }
 
-        jSQLDriver = configProps.getProperty("flightservice.jdbc_driver");
-        jSQLUrl = configProps.getProperty("flightservice.url");
-        jSQLUser = configProps.getProperty("flightservice.sqlazure_username");
-        jSQLPassword = configProps.getProperty("flightservice.sqlazure_password");
+    /**
+     * @return the statistics of the shared connection pool, or null with the memory backend
+     */
+    public ConnectionPool.Stats poolStats()
+    {
+        return pool == null ? null : pool.stats();
+    }
 
-        /* load jdbc drivers */
-        Class.forName(jSQLDriver).newInstance();
+    public StorageBackend backend()
+    {
+        return backend;
+    }
 
-        /* open connections to the flights database */
-        conn = DriverManager.getConnection(jSQLUrl, // database
-                                           jSQLUser, // user
-                                           jSQLPassword); // password
+    public TransactionRunner transactionRunner()
+    {
+        return runner;
+    }
 
-        conn.setAutoCommit(true); //by default automatically commit after each statement
+    /**
+     * @return the shared search cache, or null when it is disabled
+     */
+    public SearchCache searchCache()
+    {
+        return searchCache;
+    }
 
-        /* You will also want to appropriately set the transaction's isolation level through:
-           conn.setTransactionIsolation(...)
-           See Connection class' JavaDoc for details.
+    /**
+     * Operations for administrators, published as flightservice:type=Admin,name=flights.
+     */
+    public interface FlightsMXBean
+    {
+        /**
+         * Call after changing the Flights row of {@code fid}, see {@link Query#flightChanged}.
          */
+        String flightChanged(int fid);
     }
 
-    public void closeConnection() throws Exception
+    /**
+     * Brings the route index, the search cache and the flight cache up to date after the
+     * Flights row of {@code fid} was canceled, un-canceled or had its time, capacity or price
+     * changed. Only the jdbc backend reads flights that can change. Also called through
+     * {@link FlightsMXBean}.
+     */
+    public void flightChanged(int fid) throws SQLException
     {
-        conn.close();
+        if (flightChanges != null) {
+            flightChanges.apply(fid);
+        }
+    }
+
+    /**
+     * Applies changed Flights rows to the route index and caches that all sessions share, so
+     * it does not belong to any session. Published once per JVM as the {@link FlightsMXBean}.
+     */
+    private static final class FlightChanges implements FlightsMXBean
+    {
+        private static FlightChanges shared;
+
+        private final ConnectionPool pool;
+        private final boolean routeIndex;
+        private final SearchCache searchCache;
+        private final FlightCache flightCache;
+
+        private FlightChanges(ConnectionPool pool, boolean routeIndex, SearchCache searchCache, FlightCache flightCache) {
+            this.pool = pool;
+            this.routeIndex = routeIndex;
+            this.searchCache = searchCache;
+            this.flightCache = flightCache;
+        }
+
+        static synchronized FlightChanges shared(ConnectionPool pool, boolean routeIndex, SearchCache searchCache, FlightCache flightCache) {
+            if (shared == null) {
+                shared = new FlightChanges(pool, routeIndex, searchCache, flightCache);
+                Metrics.registerAdmin("flights", FlightsMXBean.class, shared);
+            }
+            return shared;
+        }
+
+        public String flightChanged(int fid) {
+            try {
+                apply(fid);
+                return "Flight " + fid + " reloaded";
+            } catch (SQLException e) {
+                return "Reloading flight " + fid + " failed: " + e.getMessage();
+            }
+        }
+
+        // one change at a time, so a rebuilt index is not replaced by an older one
+        synchronized void apply(int fid) throws SQLException {
+            if (routeIndex) {
+                indexFlightChange(fid);
+            } else if (searchCache != null) {
+                searchCache.invalidateAll();
+            }
+            flightCache.remove(fid);
+        }
+
+        // applies the change of fid to the route index, rebuilding it for a flight it has not loaded
+        private void indexFlightChange(int fid) throws SQLException {
+            RouteIndex index = RouteIndex.current();
+            ConnectionPool.PooledConnection conn = pool.borrow();
+            List<String> origins;
+            try {
+                PreparedStatement flightStatement = conn.prepare(FLIGHT_CHANGE);
+                flightStatement.clearParameters();
+                flightStatement.setInt(1, fid);
+                ResultSet rs = Metrics.executeQuery(flightStatement, FLIGHT_CHANGE);
+                if (!rs.next() || rs.getInt("canceled") != 0) {
+                    origins = index.cancel(fid);
+                } else {
+                    origins = index.change(fid, rs.getInt("actual_time"), rs.getInt("capacity"), rs.getInt("price"));
+                }
+                rs.close();
+            } finally {
+                pool.release(conn, false);
+            }
+            if (origins == null) {
+                // canceled when the index was loaded, or added since
+                RouteIndex.rebuild(pool);
+                if (searchCache != null) {
+                    searchCache.invalidateAll();
+                }
+            } else if (searchCache != null) {
+                int day = index.day(fid);
+                for (String origin : origins) {
+                    searchCache.invalidate(origin, day);
+                }
+            }
+        }
     }
 
     /**
@@ -238,16 +409,8 @@ public class Query
      */
     public void clearTables ()
     {
-        String deleteReservations = "DELETE FROM Reservations";
-        String deleteUsers = "DELETE FROM Users";
-        String resetReservationID = "DBCC CHECKIDENT ('Reservations', RESEED, 0)";
         try {
-            PreparedStatement s1 = conn.prepareStatement(deleteReservations);
-            s1.executeUpdate();
-            PreparedStatement s2 = conn.prepareStatement(deleteUsers);
-            s2.executeUpdate();
-            PreparedStatement s3 = conn.prepareStatement(resetReservationID);
-            s3.executeUpdate();
+            backend.clear();
         } catch (SQLException e) {}
     }
 
@@ -255,29 +418,12 @@ public class Query
      * prepare all the SQL statements in this method.
      * "preparing" a statement is almost like compiling it.
      * Note that the parameters (with ?) are still not filled in
+     *
+     * Backends prepare what they can ahead of use; see {@link JdbcBackend#prepare()}.
      */
     public void prepareStatements() throws Exception
     {
-        beginTransactionStatement = conn.prepareStatement(BEGIN_TRANSACTION_SQL);
-        commitTransactionStatement = conn.prepareStatement(COMMIT_SQL);
-        rollbackTransactionStatement = conn.prepareStatement(ROLLBACK_SQL);
-
-        checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-
-        /* add here more prepare statements for all the other queries you need */
-        /* . . . . . . */
-        checkUserStatement = conn.prepareStatement(CHECK_USER);
-        insertUserStatement = conn.prepareStatement(INSERT_USER);
-        directSearchStatement = conn.prepareStatement(DIRECT_SEARCH);
-        indirectSearchStatement = conn.prepareStatement(INDIRECT_SEARCH);
-        checkFlightStatement = conn.prepareStatement(CHECK_FLIGHT);
-        checkReservationByUsernameStatement = conn.prepareStatement(CHECK_RESERVATION_BY_USERNAME);
-        countSeatStatement = conn.prepareStatement(COUNT_SEAT);
-        insertReservationStatement = conn.prepareStatement(INSERT_RESERVATION, Statement.RETURN_GENERATED_KEYS);
-        updateUserBalanceStatement = conn.prepareStatement(UPDATE_USER_BALANCE);
-        updateReservationPaidStatement = conn.prepareStatement(UPDATE_RESERVATION_PAID);
-        checkReservationByUsernameAndRidStatement =  conn.prepareStatement(CHECK_RESERVATION_BY_USERNAME_AND_RID);
-        deleteReservationStatement = conn.prepareStatement(DELETE_RESERVATION);
+        backend.prepare();
     }
 
     /**
@@ -298,13 +444,14 @@ public class Query
         }
         String errorMessage = "Login failed\n";
         try {
-            beginTransaction();
-            String passwordSQL = getUserPassword(username);
-            commitTransaction();
-            if (passwordSQL.equals(password)) {
+            // the user's booked days, or null if the password does not match
+            Integer days = runner.inTransaction("login", this, () ->
+                backend.password(username).equals(password) ? backend.bookedDays(username) : null);
+            if (days != null) {
                 this.username = username;
                 loggedIn = true;
                 itineraries.clear();
+                bookedDays = days;
                 return "Logged in as " + this.username + "\n";
             }
         } catch (SQLException e) {
@@ -332,13 +479,12 @@ public class Query
             return errorMessage;
         }
         try {
-            beginTransaction();
-            String passwordSQL = getUserPassword(username);
-            commitTransaction();
+            String passwordSQL = runner.inTransaction("create", this, () -> backend.password(username));
             if(passwordSQL.equals("")) {
-                beginTransaction();
-                insertUser(username, password, initAmount);
-                commitTransaction();
+                runner.inTransaction("create", this, () -> {
+                    backend.insertUser(username, password, initAmount);
+                    return null;
+                });
                 return "Created user " + username + "\n";
             }
         } catch (SQLException e) {
@@ -388,27 +534,56 @@ public class Query
         if (dayOfMonth > 0 && dayOfMonth < 31 && numberOfItineraries > 0) {
             try {
                 itineraries.clear();
-                beginTransaction();
-                itineraries = directItineraries(originCity, destinationCity, dayOfMonth, numberOfItineraries);
-                commitTransaction();
-                int k = numberOfItineraries - itineraries.size();
-                if (!directFlight && k > 0) {
-                    beginTransaction();
-                    itineraries.addAll(indirectItineraries(originCity, destinationCity, dayOfMonth, k));
-                    commitTransaction();
+                // direct flights fill the result first; one-hop ones only the remaining slots
+                List<Itinerary> direct;
+                List<Itinerary> indirect = Collections.emptyList();
+                long generation = searchCache == null ? 0 : searchCache.generation();
+                SearchCache.Result cached = searchCache == null ? null
+                    : searchCache.get(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+                if (cached != null) {
+                    direct = cached.direct;
+                    indirect = cached.indirect;
+                } else if (routeIndex) {
+                    RouteIndex index = RouteIndex.current();
+                    direct = index.direct(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+                    int k = numberOfItineraries - direct.size();
+                    if (!directFlight && k > 0) {
+                        indirect = index.indirect(originCity, destinationCity, dayOfMonth, k);
+                    }
+                } else {
+                    // Flights is read-only, so both searches can share a transaction, and a
+                    // search batch keeps it open for the searches that follow
+                    SearchCache.Result found;
+                    SearchLeg oneHop = parallelSearch && !directFlight
+                        ? startSearchLeg(originCity, destinationCity, dayOfMonth, numberOfItineraries)
+                        : null;
+                    if (searchBatch) {
+                        if (!backend.inTransaction()) {
+                            beginTransaction();
+                        }
+                        found = searchDatabase(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, oneHop);
+                    } else {
+                        found = runner.inTransaction("search", this, () ->
+                            searchDatabase(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, oneHop));
+                    }
+                    direct = found.direct;
+                    indirect = found.indirect;
+                }
+                if (cached == null && searchCache != null) {
+                    searchCache.put(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, generation,
+                                    new SearchCache.Result(direct, indirect));
                 }
+                itineraries = merge(direct, indirect);
                 if (itineraries.size()==0) {
                     return "No flights match your selection\n";
                 } else {
-                    String s = "";
-                    Collections.sort(itineraries);
-                    for (int i = 0; i<itineraries.size(); i++) {
-                        s += "Itinerary " + i + ": " + itineraries.get(i).size() + " flight(s), " + (itineraries.get(i).first().getTime() + (itineraries.get(i).second()==null ? 0 : itineraries.get(i).second().getTime())) + " minutes\n";
-                        s += itineraries.get(i).toString();
-                    }
-                    return s;
+                    return renderer.itineraries(itineraries).finish();
                 }
             } catch (SQLException e) {
+                if (searchLeg != null) {
+                    searchLeg.cancel();
+                }
+                Metrics.failed(); // also in a search batch, which runs no TransactionRunner
                 try {
                     rollbackTransaction();
                 } catch (SQLException e1) {}
@@ -420,52 +595,130 @@ public class Query
     }
 
     /**
-     * Same as {@code transaction_search} except that it only performs single hop search and
-     * do it in an unsafe manner.
-     *
-     * @param originCity
-     * @param destinationCity
-     * @param directFlight
-     * @param dayOfMonth
-     * @param numberOfItineraries
+     * Direct flights, then one-hop ones for the remaining slots, in the current transaction.
+     * With {@code oneHop} the one-hop itineraries come from that leg instead, which runs
+     * alongside and is canceled if direct flights fill all slots; if it fails, they are
+     * searched here after all.
+     */
+    private SearchCache.Result searchDatabase(String originCity, String destinationCity, boolean directFlight,
+                                              int dayOfMonth, int numberOfItineraries, SearchLeg oneHop) throws SQLException
+    {
+        List<Itinerary> direct = backend.direct(originCity, destinationCity, dayOfMonth, numberOfItineraries);
+        List<Itinerary> indirect = Collections.emptyList();
+        int k = numberOfItineraries - direct.size();
+        if (oneHop != null && k <= 0) {
+            oneHop.cancel();
+        } else if (!directFlight && k > 0) {
+            List<Itinerary> speculative = oneHop == null ? null : oneHop.result();
+            indirect = speculative != null ? speculative.subList(0, Math.min(k, speculative.size()))
+                                           : backend.indirect(originCity, destinationCity, dayOfMonth, k);
+        }
+        return new SearchCache.Result(direct, indirect);
+    }
+
+    /**
+     * Starts the one-hop leg of a search on the session's leg backend.
      *
-     * @return The search results. Note that this implementation *does not conform* to the format required by
-     * {@code transaction_search}.
+     * @return the leg, or null to search serially: the session's last leg has not ended yet,
+     * or no connection or thread is free for it
      */
-    private String transaction_search_unsafe(String originCity, String destinationCity, boolean directFlight,
-                                             int dayOfMonth, int numberOfItineraries)
+    private SearchLeg startSearchLeg(String originCity, String destinationCity, int dayOfMonth, int n)
     {
-        StringBuffer sb = new StringBuffer();
+        if (searchLeg != null && !searchLeg.done()) {
+            return null;
+        }
+        if (legBackend == null) {
+            legBackend = new JdbcBackend(pool, flightCache, configProps);
+        }
+        searchLeg = SearchLeg.start(legBackend, pool.stats().maxSize, originCity, destinationCity, dayOfMonth, n);
+        return searchLeg;
+    }
 
-        try
-        {
-            // one hop itineraries
-            String unsafeSearchSQL =
-                "SELECT TOP (" + numberOfItineraries + ") day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price "
-                + "FROM Flights "
-                + "WHERE origin_city = \'" + originCity + "\' AND dest_city = \'" + destinationCity + "\' AND day_of_month =  " + dayOfMonth + " "
-                + "ORDER BY actual_time ASC";
-
-            Statement searchStatement = conn.createStatement();
-            ResultSet oneHopResults = searchStatement.executeQuery(unsafeSearchSQL);
-
-            while (oneHopResults.next())
-            {
-                int result_dayOfMonth = oneHopResults.getInt("day_of_month");
-                String result_carrierId = oneHopResults.getString("carrier_id");
-                String result_flightNum = oneHopResults.getString("flight_num");
-                String result_originCity = oneHopResults.getString("origin_city");
-                String result_destCity = oneHopResults.getString("dest_city");
-                int result_time = oneHopResults.getInt("actual_time");
-                int result_capacity = oneHopResults.getInt("capacity");
-                int result_price = oneHopResults.getInt("price");
-
-                sb.append("Day: " + result_dayOfMonth + " Carrier: " + result_carrierId + " Number: " + result_flightNum + " Origin: " + result_originCity + " Destination: " + result_destCity + " Duration: " + result_time + " Capacity: " + result_capacity + " Price: " + result_price + "\n");
+    /**
+     * The one-hop search of a parallel search, run on a connection of its own for as many
+     * itineraries as the whole search asks for, since the number of direct flights is not
+     * known yet. Both legs hold a connection at the same time, so parallel searches need
+     * about twice the connections of the same load of serial ones. The leg only takes a
+     * connection that is free right away, and never waits for one while its session holds
+     * another.
+     */
+    private static final class SearchLeg
+    {
+        private final JdbcBackend backend;
+        private Future<List<Itinerary>> future;
+
+        private SearchLeg(JdbcBackend backend) {
+            this.backend = backend;
+        }
+
+        /**
+         * @return the running leg, or null if no connection or no leg thread was free
+         */
+        static SearchLeg start(JdbcBackend backend, int threads, String originCity, String destinationCity, int dayOfMonth, int n) {
+            try {
+                if (!backend.tryBegin()) {
+                    return null;
+                }
+            } catch (SQLException e) {
+                return null; // the serial search reports it
+            }
+            SearchLeg leg = new SearchLeg(backend);
+            try {
+                leg.future = executor(threads).submit(() -> {
+                    try {
+                        List<Itinerary> indirect = backend.indirect(originCity, destinationCity, dayOfMonth, n);
+                        backend.commit();
+                        return indirect;
+                    } catch (SQLException e) {
+                        backend.rollback(); // also after a cancel, keeping the connection
+                        throw e;
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                try {
+                    backend.rollback();
+                } catch (SQLException e1) {}
+                return null;
+            }
+            return leg;
+        }
+
+        boolean done() {
+            return future.isDone();
+        }
+
+        /**
+         * @return the itineraries, or null if the leg failed
+         */
+        List<Itinerary> result() {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                return null;
             }
-            oneHopResults.close();
-        } catch (SQLException e) { e.printStackTrace(); }
+        }
 
-        return sb.toString();
+        // stops the query on the server, or keeps it from starting; the leg then gives its
+        // connection back
+        void cancel() {
+            backend.cancel();
+        }
+
+        // at most one thread per pooled connection, and no queue: a leg that would wait for a
+        // thread is searched serially instead
+        private static synchronized ExecutorService executor(int threads) {
+            if (searchLegs == null) {
+                searchLegs = new ThreadPoolExecutor(0, threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                    Thread t = new Thread(r, "search-leg");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+            return searchLegs;
+        }
     }
 
     /**
@@ -492,28 +745,25 @@ public class Query
             String errorMessage = "Booking failed\n";
             try {
                 Itinerary i = itineraries.get(itineraryId);
-                beginTransaction();
-                boolean sameDay = checkSameDayReservation(i.first().getDay());
-                commitTransaction();
-                if(sameDay) {
+                if ((bookedDays & dayBit(i.first().getDay())) != 0) {
+                    // refused without the booking transaction, unless the day is free by now
+                    bookedDays = runner.inTransaction("sameDay", this, () -> backend.bookedDays(this.username));
+                    if ((bookedDays & dayBit(i.first().getDay())) != 0) {
+                        return "You cannot book two flights in the same day\n";
+                    }
+                }
+                // runs its own transaction
+                int[] result = runner.retry("book", () -> backend.book(this.username, i.first(), i.second()));
+                if (result[0] == StorageBackend.SAME_DAY) {
+                    bookedDays |= dayBit(i.first().getDay()); // booked from another session
                     return "You cannot book two flights in the same day\n";
+                } else if (result[0] == StorageBackend.BOOKED) {
+                    bookedDays |= dayBit(i.first().getDay());
+                    return "Booked flight(s), reservation ID: " + result[1] + "\n";
                 } else {
-                    beginTransaction();
-                    int seat1 = getAvailableSeat(i.first());
-                    int seat2 = getAvailableSeat(i.second());
-                    if (seat1 > 0 && seat2 > 0) {
-                        int id = updateReservations(this.username, i.first(), i.second());
-                        commitTransaction();
-                        return "Booked flight(s), reservation ID: " + id + "\n";
-                    } else {
-                        commitTransaction();
-                        return errorMessage;
-                    }
+                    return errorMessage;
                 }
             } catch (SQLException e) {
-                try {
-                    rollbackTransaction();
-                } catch (SQLException e1) {}
                 return errorMessage;
             }
         } else {
@@ -549,16 +799,21 @@ public class Query
         }
         String message = "Failed to retrieve reservations\n";
         try {
-            beginTransaction();
-            message = getReservation(this.username);
-            commitTransaction();
+            List<StorageBackend.Reservation> reservations =
+                runner.inTransaction("reservations", this, () -> backend.reservations(this.username));
+            if (reservations.isEmpty()) {
+                return "No reservations found\n";
+            }
+            for (StorageBackend.Reservation r : reservations) {
+                renderer.reservation(r.rid, r.paid, r.f1, r.f2);
+            }
+            return renderer.finish();
         } catch (SQLException e) {
             try {
                 rollbackTransaction();
             } catch (SQLException e1) {}
             return message;
         }
-        return message;
     }
 
     /**
@@ -581,17 +836,24 @@ public class Query
         }
         String errorMessage = "Failed to cancel reservation " + reservationId + "\n";
         try {
-            beginTransaction();
-            int refund = getPriceSQL(this.username, reservationId, CANCEL);
-            commitTransaction();
-            if (refund == -1) {
+            // read and written in one transaction, so that a retried attempt sees whether an
+            // earlier one or another session has canceled the reservation meanwhile
+            StorageBackend.Reservation r = runner.inTransaction("cancel", this, () -> {
+                StorageBackend.Reservation found = backend.reservation(this.username, reservationId);
+                if (found != null) {
+                    // only a paid reservation is refunded
+                    int refund = found.paid ? found.price() : 0;
+                    int oldBalance = backend.balance(this.username);
+                    backend.updateBalance(this.username, refund+oldBalance);
+                    backend.releaseSeats(reservationId);
+                    backend.deleteReservation(reservationId);
+                }
+                return found;
+            });
+            if (r == null) {
                 return errorMessage;
             } else {
-                beginTransaction();
-                int oldBalance = getBalance(this.username);
-                updateBalance(this.username, refund+oldBalance);
-                deleteReservation(reservationId);
-                commitTransaction();
+                bookedDays &= ~dayBit(r.day());
                 return "Canceled reservation " + reservationId + "\n";
             }
         } catch (SQLException e) {
@@ -625,19 +887,25 @@ public class Query
         }
         String errorMessage = "Failed to pay for reservation " + reservationId + "\n";
         try {
-            beginTransaction();
-            int price = getPriceSQL(this.username, reservationId, PAY);
-            int balance = getBalance(this.username);
-            commitTransaction();
+            // {price, balance}, the price 0 if there is no such unpaid reservation. Read and
+            // written in one transaction, so that a retried attempt charges the balance it reads.
+            int[] found = runner.inTransaction("pay", this, () -> {
+                StorageBackend.Reservation r = backend.reservation(this.username, reservationId);
+                int[] priceAndBalance = {r == null || r.paid ? 0 : r.price(), backend.balance(this.username)};
+                int newBalance = priceAndBalance[1] - priceAndBalance[0];
+                if (priceAndBalance[0] > 0 && newBalance > 0) {
+                    backend.updateBalance(this.username, newBalance);
+                    backend.markPaid(reservationId);
+                }
+                return priceAndBalance;
+            });
+            int price = found[0];
+            int balance = found[1];
             int newBalance = balance - price;
             if (price <= 0) {
                 return "Cannot find unpaid reservation " + reservationId + " under user: " + this.username + "\n";
             } else {
                 if (newBalance > 0) {
-                    beginTransaction();
-                    updateBalance(this.username, newBalance);
-                    updatePaid(reservationId);
-                    commitTransaction();
                     return "Paid reservation: " + reservationId + " remaining balance: "+ newBalance + "\n";
                 } else {
                     return "User has only " + balance + " in account but itinerary costs " + price + "\n";
@@ -654,244 +922,65 @@ public class Query
 
     /* some utility functions below */
 
-    public void beginTransaction() throws SQLException
-    {
-        conn.setAutoCommit(false);
-        beginTransactionStatement.executeUpdate();
-    }
-
-    public void commitTransaction() throws SQLException
+    /**
+     * Merges two lists that are each sorted in {@code Itinerary} order.
+     */
+    static List<Itinerary> merge(List<Itinerary> a, List<Itinerary> b)
     {
-        commitTransactionStatement.executeUpdate();
-        conn.setAutoCommit(true);
+        List<Itinerary> merged = new ArrayList<>(a.size() + b.size());
+        int i = 0, j = 0;
+        while (i < a.size() && j < b.size()) {
+            merged.add(a.get(i).compareTo(b.get(j)) <= 0 ? a.get(i++) : b.get(j++));
+        }
+        merged.addAll(a.subList(i, a.size()));
+        merged.addAll(b.subList(j, b.size()));
+        return merged;
     }
 
-    public void rollbackTransaction() throws SQLException
+    /**
+     * Lets the searches that follow share one read transaction on one connection, until
+     * {@link #endSearchBatch()}. Searches only read the Flights table, which never changes, so
+     * their results are the same as in a transaction of their own; the batch saves a borrow,
+     * a BEGIN and a COMMIT per search. Only searches may run while a batch is open.
+     */
+    public void beginSearchBatch()
     {
-        rollbackTransactionStatement.executeUpdate();
-        conn.setAutoCommit(true);
+        searchBatch = true;
     }
 
     /**
-     * Shows an example of using PreparedStatements after setting arguments. You don't need to
-     * use this method if you don't want to.
+     * Commits the transaction of the current search batch, if a search opened one.
      */
-    private int checkFlightCapacity(int fid) throws SQLException
+    public void endSearchBatch()
     {
-        checkFlightCapacityStatement.clearParameters();
-        checkFlightCapacityStatement.setInt(1, fid);
-        ResultSet results = checkFlightCapacityStatement.executeQuery();
-        results.next();
-        int capacity = results.getInt("capacity");
-        results.close();
-
-        return capacity;
-    }
-
-    //------------------------Methods--------------------------------
-    private String getUserPassword(String username) throws SQLException {
-        checkUserStatement.clearParameters();
-        checkUserStatement.setString(1, username);
-        ResultSet rs = checkUserStatement.executeQuery();
-        String password = (rs.next() ? rs.getString("password") : "");
-        rs.close();
-        return password;
-    }
-
-    private void insertUser(String username, String password, int balance) throws SQLException {
-        insertUserStatement.clearParameters();
-        insertUserStatement.setString(1, username);
-        insertUserStatement.setString(2, password);
-        insertUserStatement.setInt(3, balance);
-        insertUserStatement.executeUpdate();
-    }
-
-    private List<Itinerary> directItineraries(String origin, String dest, int day, int n) throws SQLException {
-        List<Itinerary> direct = new ArrayList<Itinerary>();
-        directSearchStatement.clearParameters();
-        directSearchStatement.setInt(1, n);
-        directSearchStatement.setString(2, origin);
-        directSearchStatement.setString(3, dest);
-        directSearchStatement.setInt(4, day);
-        ResultSet rs = directSearchStatement.executeQuery();
-        while (rs.next()) {
-            Flight f1 = new Flight(rs.getInt("fid"), rs.getInt("day_of_month"), rs.getString("carrier_id"), rs.getString("flight_num"), rs.getString("origin_city"), rs.getString("dest_city"), rs.getInt("actual_time"), rs.getInt("capacity"), rs.getInt("price"));
-            direct.add(new Itinerary(f1));
-        }
-        rs.close();
-        return direct;
-    }
-
-    private List<Itinerary> indirectItineraries(String origin, String dest, int day, int n) throws SQLException {
-        List<Itinerary> indirect = new ArrayList<Itinerary>();
-        indirectSearchStatement.clearParameters();
-        indirectSearchStatement.setInt(1, n);
-        indirectSearchStatement.setString(2, origin);
-        indirectSearchStatement.setString(3, dest);
-        indirectSearchStatement.setInt(4, day);
-        ResultSet rs = indirectSearchStatement.executeQuery();
-        while (rs.next()) {
-            Flight f1 = new Flight(rs.getInt("fid1"), rs.getInt("day1"), rs.getString("carrier1"), rs.getString("num1"), rs.getString("origin1"), rs.getString("dest1"), rs.getInt("time1"), rs.getInt("capacity1"), rs.getInt("price1"));
-            Flight f2 = new Flight(rs.getInt("fid2"), rs.getInt("day2"), rs.getString("carrier2"), rs.getString("num2"), rs.getString("origin2"), rs.getString("dest2"), rs.getInt("time2"), rs.getInt("capacity2"), rs.getInt("price2"));
-            indirect.add(new Itinerary(f1, f2));
-        }
-        rs.close();
-        return indirect;
-    }
-
-    private int getDay(int fid) throws SQLException {
-        checkFlightStatement.clearParameters();
-        checkFlightStatement.setInt(1, fid);
-        ResultSet rs = checkFlightStatement.executeQuery();
-        rs.next();
-        int day = rs.getInt("day_of_month");
-        rs.close();
-        return day;
-    }
-
-    private boolean checkSameDayReservation(int dayWantToBook) throws SQLException {
-        checkReservationByUsernameStatement.clearParameters();
-        checkReservationByUsernameStatement.setString(1, this.username);
-        ResultSet rs = checkReservationByUsernameStatement.executeQuery();
-        while (rs.next()) {
-            int daySQL = getDay(rs.getInt("fid1"));
-            if (daySQL == dayWantToBook) {
-                rs.close();
-                return true;
-            }
-        }
-        rs.close();
-        return false;
-    }
-
-    private int getAvailableSeat(Flight f) throws SQLException {
-        if (f != null) {
-            countSeatStatement.clearParameters();
-            countSeatStatement.setInt(1, f.getFid());
-            ResultSet rs = countSeatStatement.executeQuery();
-            rs.next();
-            int occupied = rs.getInt("count");
-            rs.close();
-            return checkFlightCapacity(f.getFid()) - occupied;
-        } else {
-            // if flight 2 of itinerary is null
-            // return 1 -> always has at least an available seat
-            return 1;
-        }
-    }
-
-    private int updateReservations(String username, Flight f1, Flight f2) throws SQLException {
-        insertReservationStatement.clearParameters();
-        insertReservationStatement.setString(1, this.username);
-        insertReservationStatement.setInt(2, f1.getFid());
-        if (f2 != null) {
-            insertReservationStatement.setInt(3, f2.getFid());
-        } else {
-            insertReservationStatement.setNull(3, Types.INTEGER);
-        }
-        insertReservationStatement.executeUpdate();
-        ResultSet rs = insertReservationStatement.getGeneratedKeys();
-        rs.next();
-        int id = rs.getInt(1);
-        rs.close();
-        return id;
-    }
-
-    private String getReservation(String username) throws SQLException {
-        checkReservationByUsernameStatement.clearParameters();
-        checkReservationByUsernameStatement.setString(1, this.username);
-        ResultSet rs = checkReservationByUsernameStatement.executeQuery();
-        if (!rs.isBeforeFirst()) {
-            return "No reservations found\n";
-        } else {
-            String message = "";
-            while (rs.next()) {
-                message+="Reservation " + rs.getInt("rid") + " paid: " + (rs.getInt("paid")==0 ? "false:\n" : "true:\n");
-                message+= getFlightInfo(rs.getInt("fid1"));
-                message+= getFlightInfo(rs.getInt("fid2"));
+        searchBatch = false;
+        if (backend.inTransaction()) {
+            try {
+                commitTransaction();
+            } catch (SQLException e) {
+                try {
+                    rollbackTransaction();
+                } catch (SQLException e1) {}
             }
-            rs.close();
-            return message;
-        }
-    }
-
-    private String getFlightInfo(int fid) throws SQLException {
-        String info = "";
-        checkFlightStatement.clearParameters();
-        checkFlightStatement.setInt(1, fid);
-        ResultSet rs = checkFlightStatement.executeQuery();
-        if (rs.next()) {
-            Flight f1 = new Flight(rs.getInt("fid"), rs.getInt("day_of_month"), rs.getString("carrier_id"), rs.getString("flight_num"), rs.getString("origin_city"), rs.getString("dest_city"), rs.getInt("actual_time"), rs.getInt("capacity"), rs.getInt("price"));
-            info = f1.toString();
         }
-        rs.close();
-        return info;
-    }
-
-    private int getPrice(int fid) throws SQLException {
-        checkFlightStatement.clearParameters();
-        checkFlightStatement.setInt(1, fid);
-        ResultSet rs = checkFlightStatement.executeQuery();
-        int price = 0;
-        if (rs.next()) {
-            price = rs.getInt("price");
-        }
-        rs.close();
-        return price;
-    }
-
-    private int getBalance(String username) throws SQLException {
-        checkUserStatement.clearParameters();
-        checkUserStatement.setString(1, username);
-        ResultSet rs = checkUserStatement.executeQuery();
-        rs.next();
-        int balance = rs.getInt("balance");
-        rs.close();
-        return balance;
     }
 
-    private void updateBalance(String username, int newBalance) throws SQLException {
-        updateUserBalanceStatement.clearParameters();
-        updateUserBalanceStatement.setInt(1, newBalance);
-        updateUserBalanceStatement.setString(2, username);
-        updateUserBalanceStatement.executeUpdate();
+    public void beginTransaction() throws SQLException
+    {
+        backend.begin();
     }
 
-    private void updatePaid(int rid) throws SQLException {
-        updateReservationPaidStatement.clearParameters();
-        updateReservationPaidStatement.setInt(1, rid);
-        updateReservationPaidStatement.executeUpdate();
+    public void commitTransaction() throws SQLException
+    {
+        backend.commit();
     }
 
-    private int getPriceSQL(String username, int rid, int f) throws SQLException {
-        int price = -1;
-        checkReservationByUsernameAndRidStatement.clearParameters();
-        checkReservationByUsernameAndRidStatement.setString(1, username);
-        checkReservationByUsernameAndRidStatement.setInt(2, rid);
-        ResultSet rs = checkReservationByUsernameAndRidStatement.executeQuery();
-        if (rs.isBeforeFirst()) {
-            rs.next();
-            if (f == CANCEL) {
-                if (rs.getInt("paid") == 1) {
-                    price = getPrice(rs.getInt("fid1")) + getPrice(rs.getInt("fid2"));
-                } else {
-                    price = 0;
-                }
-            } else {
-                if (rs.getInt("paid") == 1) {
-                    price = 0;
-                } else {
-                    price = getPrice(rs.getInt("fid1")) + getPrice(rs.getInt("fid2"));
-                }
-            }
-        }
-        rs.close();
-        return price;
+    public void rollbackTransaction() throws SQLException
+    {
+        backend.rollback();
     }
 
-    private void deleteReservation(int rid) throws SQLException {
-        deleteReservationStatement.clearParameters();
-        deleteReservationStatement.setInt(1, rid);
-        deleteReservationStatement.executeUpdate();
+    static int dayBit(int day) {
+        return day >= 1 && day <= 31 ? 1 << (day - 1) : 0;
     }
 }
@@ -0,0 +1,113 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out reservation ids in blocks reserved from the ReservationIds table.
+ *
+ * Each block of {@code blockSize} ids is reserved with one update of the table's single row,
+ * in a short transaction of its own on the connection of the booking that found the block
+ * used up, before that booking starts its own transaction. Its ids are then taken by bookings
+ * with an atomic increment, without a round trip or a lock on the database. Ids are never
+ * reused, also across restarts and by several JVMs, since the row only grows; but they are
+ * not contiguous: a booking that fails after taking an id skips it, as do the rest of a block
+ * on shutdown, and with several JVMs ids are not in booking order.
+ *
+ * With a block size of 1 no allocator is used: the BookItinerary procedure takes the next id
+ * from the table inside the booking transaction, so ids stay contiguous, as they were with an
+ * IDENTITY column.
+ */
+public class ReservationIds
+{
+    private static final String RESERVE_BLOCK = "UPDATE ReservationIds SET next_rid = next_rid + ? OUTPUT DELETED.next_rid";
+
+    private static ReservationIds shared;
+
+    private final int blockSize;
+
+    // the block ids are taken from; replaced when it runs out or on reset
+    private volatile Block block = new Block(0, 0);
+
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong taken = new AtomicLong();
+
+    private static final class Block
+    {
+        private final AtomicInteger next;
+        private final int end;
+
+        Block(int start, int end) {
+            this.next = new AtomicInteger(start);
+            this.end = end;
+        }
+    }
+
+    public ReservationIds(int blockSize)
+    {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Returns the allocator shared by all sessions in this JVM, creating it with the given
+     * block size the first time it is requested.
+     */
+    public static synchronized ReservationIds shared(int blockSize)
+    {
+        if (shared == null) {
+            shared = new ReservationIds(blockSize);
+        }
+        return shared;
+    }
+
+    /**
+     * @return the next id, reserving a new block first if the current one is used up
+     * @param conn the caller's connection, in auto-commit mode, to reserve a block on
+     */
+    public int next(ConnectionPool.PooledConnection conn) throws SQLException
+    {
+        while (true) {
+            Block b = block;
+            int id = b.next.getAndIncrement();
+            if (id < b.end) {
+                taken.incrementAndGet();
+                return id;
+            }
+            synchronized (this) {
+                if (block == b) { // nobody else has replaced it meanwhile
+                    block = reserve(conn);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the current block, after the table has been reset to start over at 1.
+     */
+    public synchronized void reset()
+    {
+        block = new Block(0, 0);
+    }
+
+    public String stats()
+    {
+        return "reservationIds: block " + blockSize + " reserved " + reserved.get() + " taken " + taken.get();
+    }
+
+    private Block reserve(ConnectionPool.PooledConnection conn) throws SQLException
+    {
+        PreparedStatement reserveStatement = conn.prepare(RESERVE_BLOCK);
+        reserveStatement.clearParameters();
+        reserveStatement.setInt(1, blockSize);
+        ResultSet rs = Metrics.executeQuery(reserveStatement, RESERVE_BLOCK);
+        if (!rs.next()) {
+            rs.close();
+            throw new SQLException("ReservationIds has no row; see createTables.sql");
+        }
+        int start = rs.getInt(1);
+        rs.close();
+        reserved.addAndGet(blockSize);
+        return new Block(start, start + blockSize);
+    }
+}
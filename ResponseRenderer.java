@@ -0,0 +1,105 @@
+import java.util.List;
+
+/**
+ * Renders search and reservation responses into one reusable buffer.
+ *
+ * Each session owns a renderer. Flights, itinerary headers and reservation headers are
+ * appended field by field (ints through {@link StringBuilder#append(int)}), so a response
+ * costs no intermediate Strings and no re-copying of the text built so far; the only String
+ * created is the response returned by {@link #finish()}. The text is exactly what
+ * {@code Flight.toString()} and the former string concatenation produced.
+ */
+public class ResponseRenderer
+{
+    // buffers that grew past this for one large response are not kept for the next one
+    private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private StringBuilder sb = new StringBuilder(INITIAL_CAPACITY);
+
+    /**
+     * Appends the sorted itineraries in the search response format, numbered from 0.
+     */
+    public ResponseRenderer itineraries(List<Query.Itinerary> itineraries)
+    {
+        for (int i = 0; i < itineraries.size(); i++) {
+            appendItinerary(sb, i, itineraries.get(i));
+        }
+        return this;
+    }
+
+    /**
+     * Appends one reservation: its header line followed by its flights. Either flight may
+     * be null, in which case nothing is printed for it.
+     */
+    public ResponseRenderer reservation(int rid, boolean paid, Query.Flight f1, Query.Flight f2)
+    {
+        sb.append("Reservation ").append(rid).append(" paid: ").append(paid ? "true:\n" : "false:\n");
+        if (f1 != null) {
+            appendFlight(sb, f1);
+        }
+        if (f2 != null) {
+            appendFlight(sb, f2);
+        }
+        return this;
+    }
+
+    /**
+     * Discards whatever was appended since the last {@link #finish()}.
+     */
+    public void reset()
+    {
+        sb.setLength(0);
+    }
+
+    public StringBuilder buffer()
+    {
+        return sb;
+    }
+
+    /**
+     * Returns the rendered response and resets the buffer for the next one.
+     */
+    public String finish()
+    {
+        String response = sb.toString();
+        if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+            sb = new StringBuilder(INITIAL_CAPACITY);
+        } else {
+            sb.setLength(0);
+        }
+        return response;
+    }
+
+    /**
+     * Itinerary [index]: [number of flights] flight(s), [total flight time] minutes\n
+     * followed by its flights.
+     */
+    public static StringBuilder appendItinerary(StringBuilder sb, int index, Query.Itinerary it)
+    {
+        sb.append("Itinerary ").append(index).append(": ").append(it.size()).append(" flight(s), ")
+          .append(it.getTotalTime()).append(" minutes\n");
+        appendFlight(sb, it.first());
+        if (it.second() != null) {
+            appendFlight(sb, it.second());
+        }
+        return sb;
+    }
+
+    /**
+     * Same text as {@code Flight.toString()}.
+     */
+    public static StringBuilder appendFlight(StringBuilder sb, Query.Flight f)
+    {
+        return sb.append("ID: ").append(f.getFid())
+                 .append(" Day: ").append(f.getDay())
+                 .append(" Carrier: ").append(f.getCarrierId())
+                 .append(" Number: ").append(f.getFlightNum())
+                 .append(" Origin: ").append(f.getOriginCity())
+                 .append(" Dest: ").append(f.getDestCity())
+                 .append(" Duration: ").append(f.getTime())
+                 .append(" Capacity: ").append(f.getCapacity())
+                 .append(" Price: ").append(f.getPrice())
+                 .append('\n');
+    }
+}
@@ -0,0 +1,629 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * In-memory route index over the (read-only) Flights table.
+ *
+ * Non-canceled flights are keyed by (origin_city, day_of_month). Every key holds the rows of
+ * its outgoing flights in a {@link FlightStore}, sorted by (actual_time, fid), both as a whole
+ * and grouped by destination, so that direct and one-hop searches can be answered without
+ * going to the database. The orderings match the ORDER BY clauses of Query's DIRECT_SEARCH
+ * and INDIRECT_SEARCH.
+ *
+ * With a connection depth d > 0 the index also keeps a connection table: for an
+ * (origin, day), the best d one-hop itineraries to every destination, computed in one pass
+ * over the origin's connections the first time a one-hop search from it asks for at most d
+ * itineraries. Later one-hop searches from that origin and day are a read of the table.
+ *
+ * {@link #cancel} and {@link #change} apply changes of single flights without rebuilding the
+ * index: they update the lists of the flight's origin and day and drop the connection table
+ * entries the flight can be part of, which are the flight's origin and every origin with a
+ * flight into it on that day. The new lists are built first and published together with the
+ * flight's new values under a write lock; searches read optimistically and run again if a
+ * change was published meanwhile, so a search sees the flight either before or after the
+ * change. A flight that was not loaded, e.g. one canceled when the index was built, can only
+ * come in with {@link #rebuild}. The snapshot file of the shared index is deleted before the
+ * first change is published, so that the next start reads the changed Flights table again.
+ */
+public class RouteIndex
+{
+    private static final int MAX_DAY = 31;
+    private static final int[] NO_ROWS = new int[0];
+
+    private static volatile RouteIndex shared;
+
+    /**
+     * Outgoing flights of one (origin_city, day_of_month) key, as store rows.
+     */
+    private static class Node
+    {
+        // replaced, never modified, by cancel and change
+        private volatile int[] byTime = NO_ROWS;
+        private volatile Map<Integer, int[]> byDest = new HashMap<>();
+
+        // only used while the index is built
+        private RowList byTimeList = new RowList();
+        private Map<Integer, RowList> byDestList = new HashMap<>();
+
+        private void add(int row, int destGroup) {
+            byTimeList.add(row);
+            byDestList.computeIfAbsent(destGroup, k -> new RowList()).add(row);
+        }
+
+        private void freeze() {
+            Map<Integer, int[]> dests = new HashMap<>();
+            for (Map.Entry<Integer, RowList> e : byDestList.entrySet()) {
+                dests.put(e.getKey(), e.getValue().toArray());
+            }
+            byTime = byTimeList.toArray();
+            byDest = dests;
+            byTimeList = null;
+            byDestList = null;
+        }
+    }
+
+    /**
+     * The best one-hop itineraries from one (origin, day): destination group -> rows of the
+     * first and second flights, alternating, best first.
+     */
+    private static class Connections
+    {
+        private final Map<Integer, int[]> byDest;
+
+        private Connections(Map<Integer, int[]> byDest) {
+            this.byDest = byDest;
+        }
+    }
+
+    private static class RowList
+    {
+        private int[] rows = new int[4];
+        private int size;
+
+        private void add(int row) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = row;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(rows, size);
+        }
+    }
+
+    private final FlightStore store;
+    // city id -> id of the group of city names that compare equal
+    private final int[] cityGroup;
+    private final Map<String, Integer> groups = new HashMap<>();
+    // group -> one of its city names
+    private final String[] groupNames;
+    // group -> day of month -> node
+    private final Node[][] nodes;
+    // group -> day of month -> shortest flight into that city on that day, to prune one-hop searches
+    private final int[][] minArrivalTime;
+
+    // connection table, (origin group, day) -> best one-hop itineraries; see connections()
+    private final int connectionDepth;
+    private final Map<Long, Connections> connections = new ConcurrentHashMap<>();
+    // bumped by every change, so a table entry computed across a change is not kept
+    private long changes;
+    // write-locked while a change is published; searches validate against it
+    private final StampedLock published = new StampedLock();
+    private final AtomicLong tableHits = new AtomicLong();
+    private final AtomicLong tableBuilds = new AtomicLong();
+
+    // fid -> row, built on the first change
+    private Map<Integer, Integer> rowsByFid;
+
+    // the snapshot file the flights were mapped from or written to, null once it is deleted
+    private Path snapshot;
+
+    public RouteIndex(FlightStore store)
+    {
+        this(store, 0);
+    }
+
+    /**
+     * @param connectionDepth itineraries kept per (origin, destination, day) in the connection
+     *                        table, 0 for no table
+     */
+    public RouteIndex(FlightStore store, int connectionDepth)
+    {
+        this.store = store;
+        this.connectionDepth = connectionDepth;
+        this.cityGroup = new int[store.cityCount()];
+        List<String> names = new ArrayList<>();
+        for (int c = 0; c < cityGroup.length; c++) {
+            Integer g = groups.get(key(store.city(c)));
+            if (g == null) {
+                g = groups.size();
+                groups.put(key(store.city(c)), g);
+                names.add(store.city(c));
+            }
+            cityGroup[c] = g;
+        }
+        this.groupNames = names.toArray(new String[0]);
+        this.nodes = new Node[groups.size()][];
+        this.minArrivalTime = new int[groups.size()][MAX_DAY + 1];
+        for (int[] days : minArrivalTime) {
+            Arrays.fill(days, Integer.MAX_VALUE);
+        }
+
+        // bucketing rows that are already in (actual_time, fid) order keeps every list sorted
+        Integer[] rows = new Integer[store.size()];
+        for (int r = 0; r < rows.length; r++) {
+            rows[r] = r;
+        }
+        Arrays.sort(rows, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return compareRows(a, b);
+            }
+        });
+
+        List<Node> built = new ArrayList<>();
+        for (int r : rows) {
+            int day = store.day(r);
+            if (day < 1 || day > MAX_DAY) {
+                continue;
+            }
+            int origin = cityGroup[store.originId(r)];
+            if (nodes[origin] == null) {
+                nodes[origin] = new Node[MAX_DAY + 1];
+            }
+            Node n = nodes[origin][day];
+            if (n == null) {
+                n = nodes[origin][day] = new Node();
+                built.add(n);
+            }
+            n.add(r, cityGroup[store.destId(r)]);
+            int dest = cityGroup[store.destId(r)];
+            minArrivalTime[dest][day] = Math.min(minArrivalTime[dest][day], store.time(r));
+        }
+        for (Node n : built) {
+            n.freeze();
+        }
+    }
+
+    /**
+     * Returns the index shared by all sessions in this JVM, building it the first time it is
+     * requested. The flights are mapped from {@code snapshot} when that file exists; otherwise
+     * they are read through a connection from {@code pool} and, if {@code snapshot} is not
+     * null, written there for the next start.
+     */
+    public static synchronized RouteIndex shared(ConnectionPool pool, Path snapshot, int connectionDepth) throws SQLException, IOException
+    {
+        if (shared == null) {
+            FlightStore store;
+            if (snapshot != null && Files.exists(snapshot)) {
+                store = FlightStore.mapSnapshot(snapshot);
+            } else {
+                ConnectionPool.PooledConnection pc = pool.borrow();
+                try {
+                    store = FlightStore.load(pc.connection());
+                } finally {
+                    pool.release(pc, false);
+                }
+                if (snapshot != null) {
+                    store.writeSnapshot(snapshot);
+                }
+            }
+            shared = new RouteIndex(store, connectionDepth);
+            shared.snapshot = snapshot;
+        }
+        return shared;
+    }
+
+    /**
+     * @return the shared index, the latest one after a {@link #rebuild}; null before it
+     * was first requested
+     */
+    public static RouteIndex current()
+    {
+        return shared;
+    }
+
+    /**
+     * Replaces the shared index with one built from the Flights table as it is now, with the
+     * same connection depth. Sessions pick it up through {@link #current()}. The snapshot file
+     * is deleted rather than rewritten, since the running index keeps it mapped.
+     */
+    public static synchronized RouteIndex rebuild(ConnectionPool pool) throws SQLException
+    {
+        if (shared != null) {
+            shared.dropSnapshot();
+        }
+        ConnectionPool.PooledConnection pc = pool.borrow();
+        FlightStore store;
+        try {
+            store = FlightStore.load(pc.connection());
+        } finally {
+            pool.release(pc, false);
+        }
+        shared = new RouteIndex(store, shared == null ? 0 : shared.connectionDepth);
+        return shared;
+    }
+
+    public FlightStore store()
+    {
+        return store;
+    }
+
+    /**
+     * Same result as DIRECT_SEARCH: the first {@code n} direct flights ordered by (actual_time, fid).
+     */
+    public List<Query.Itinerary> direct(String origin, String dest, int day, int n)
+    {
+        while (true) {
+            long stamp = published.tryOptimisticRead();
+            List<Query.Itinerary> direct = stamp == 0 ? null : directRows(origin, dest, day, n);
+            if (stamp != 0 && published.validate(stamp)) {
+                return direct;
+            }
+            Thread.onSpinWait(); // a change is being published
+        }
+    }
+
+    /**
+     * Same result as INDIRECT_SEARCH: the first {@code n} one-hop itineraries ordered by
+     * (total time, first fid, second fid).
+     *
+     * Searches for at most the connection depth are read from the connection table.
+     * Otherwise first legs are visited by increasing time and second legs by increasing time,
+     * so both loops stop as soon as the best remaining candidate is worse than the n-th kept
+     * so far.
+     */
+    public List<Query.Itinerary> indirect(String origin, String dest, int day, int n)
+    {
+        while (true) {
+            long stamp = published.tryOptimisticRead();
+            List<Query.Itinerary> indirect = stamp == 0 ? null : indirectRows(origin, dest, day, n);
+            if (stamp != 0 && published.validate(stamp)) {
+                return indirect;
+            }
+            Thread.onSpinWait(); // a change is being published
+        }
+    }
+
+    private List<Query.Itinerary> directRows(String origin, String dest, int day, int n)
+    {
+        List<Query.Itinerary> direct = new ArrayList<>();
+        int[] rows = rows(group(origin), group(dest), day);
+        for (int i = 0; i < rows.length && i < n; i++) {
+            direct.add(new Query.Itinerary(store.flight(rows[i])));
+        }
+        return direct;
+    }
+
+    private List<Query.Itinerary> indirectRows(String origin, String dest, int day, int n)
+    {
+        List<Query.Itinerary> indirect = new ArrayList<>();
+        int originGroup = group(origin);
+        Node first = node(originGroup, day);
+        int destGroup = group(dest);
+        if (first == null || destGroup < 0 || n <= 0) {
+            return indirect;
+        }
+        if (n <= connectionDepth) {
+            int[] pairs = connections(originGroup, day).byDest.get(destGroup);
+            for (int i = 0; pairs != null && i < pairs.length && i < 2 * n; i += 2) {
+                indirect.add(new Query.Itinerary(store.flight(pairs[i]), store.flight(pairs[i + 1])));
+            }
+            return indirect;
+        }
+        int minSecond = minArrivalTime[destGroup][day];
+        if (minSecond == Integer.MAX_VALUE) {
+            return indirect; // nothing lands at dest that day
+        }
+        TopK top = new TopK(n);
+        for (int r1 : first.byTime) {
+            int t1 = store.time(r1);
+            if (top.isFull() && t1 + minSecond > top.worstTotal()) {
+                break;
+            }
+            int fid1 = store.fid(r1);
+            for (int r2 : rows(cityGroup[store.destId(r1)], destGroup, day)) {
+                int total = t1 + store.time(r2);
+                if (top.isFull() && total > top.worstTotal()) {
+                    break;
+                }
+                top.offer(total, fid1, store.fid(r2), r1, r2);
+            }
+        }
+        int[][] rows = top.drain();
+        for (int i = 0; i < rows[0].length; i++) {
+            indirect.add(new Query.Itinerary(store.flight(rows[0][i]), store.flight(rows[1][i])));
+        }
+        return indirect;
+    }
+
+    /**
+     * Removes a canceled flight from the index.
+     *
+     * @return the cities whose search results may have changed on the flight's day, empty if
+     * the flight was not in the index
+     */
+    public synchronized List<String> cancel(int fid)
+    {
+        int row = row(fid);
+        if (row < 0) {
+            return new ArrayList<>();
+        }
+        Node n = node(cityGroup[store.originId(row)], store.day(row));
+        if (n == null || indexOf(n.byTime, row) < 0) {
+            return new ArrayList<>(); // already canceled
+        }
+        int dest = cityGroup[store.destId(row)];
+        Map<Integer, int[]> dests = new HashMap<>(n.byDest);
+        int[] rows = without(dests.get(dest), row);
+        if (rows.length == 0) {
+            dests.remove(dest);
+        } else {
+            dests.put(dest, rows);
+        }
+        int[] byTime = without(n.byTime, row);
+        dropSnapshot();
+        long stamp = published.writeLock();
+        try {
+            n.byDest = dests;
+            n.byTime = byTime;
+        } finally {
+            published.unlockWrite(stamp);
+        }
+        // minArrivalTime stays a lower bound, which is all the pruning needs
+        return changed(row);
+    }
+
+    /**
+     * Applies a new actual_time, capacity and price of a flight, and puts it back into the
+     * index if it was canceled. A flight with another route or day is a new flight, which
+     * needs the index to be rebuilt.
+     *
+     * @return the cities whose search results may have changed on the flight's day, or null
+     * if the flight was not loaded into the index and it needs a {@link #rebuild}
+     */
+    public synchronized List<String> change(int fid, int time, int capacity, int price)
+    {
+        int row = row(fid);
+        if (row < 0) {
+            return null;
+        }
+        int origin = cityGroup[store.originId(row)];
+        int dest = cityGroup[store.destId(row)];
+        int day = store.day(row);
+        if (nodes[origin] == null) {
+            nodes[origin] = new Node[MAX_DAY + 1];
+        }
+        Node n = nodes[origin][day];
+        if (n == null) {
+            n = nodes[origin][day] = new Node();
+            n.freeze();
+        }
+        int[] byTime = with(without(n.byTime, row), row, time);
+        Map<Integer, int[]> dests = new HashMap<>(n.byDest);
+        dests.put(dest, with(without(dests.get(dest), row), row, time));
+        dropSnapshot();
+        // the row's new values and the lists sorted by them become visible together
+        long stamp = published.writeLock();
+        try {
+            store.set(row, time, capacity, price);
+            n.byDest = dests;
+            n.byTime = byTime;
+            minArrivalTime[dest][day] = Math.min(minArrivalTime[dest][day], time);
+        } finally {
+            published.unlockWrite(stamp);
+        }
+        return changed(row);
+    }
+
+    /**
+     * @return the day of flight {@code fid}, 0 if it is not in the index
+     */
+    public synchronized int day(int fid)
+    {
+        int row = row(fid);
+        return row < 0 ? 0 : store.day(row);
+    }
+
+    public String stats()
+    {
+        return "route index: flights " + store.size() + " connection table entries " + connections.size() +
+               " builds " + tableBuilds.get() + " hits " + tableHits.get();
+    }
+
+    /**
+     * Returns the connection table entry of (origin, day), computing it if needed: every
+     * first leg is paired with every flight leaving its destination that day, and the best
+     * connectionDepth pairs are kept per final destination.
+     */
+    private Connections connections(int origin, int day)
+    {
+        long key = (long) origin * (MAX_DAY + 1) + day;
+        Connections c = connections.get(key);
+        if (c != null) {
+            tableHits.incrementAndGet();
+            return c;
+        }
+        long version;
+        synchronized (this) {
+            version = changes;
+        }
+        Map<Integer, TopK> best = new HashMap<>();
+        for (int r1 : node(origin, day).byTime) {
+            int t1 = store.time(r1);
+            int fid1 = store.fid(r1);
+            Node second = node(cityGroup[store.destId(r1)], day);
+            if (second == null) {
+                continue;
+            }
+            for (int r2 : second.byTime) {
+                int dest = cityGroup[store.destId(r2)];
+                TopK top = best.get(dest);
+                if (top == null) {
+                    best.put(dest, top = new TopK(connectionDepth));
+                }
+                int total = t1 + store.time(r2);
+                if (!top.isFull() || total <= top.worstTotal()) {
+                    top.offer(total, fid1, store.fid(r2), r1, r2);
+                }
+            }
+        }
+        Map<Integer, int[]> byDest = new HashMap<>();
+        for (Map.Entry<Integer, TopK> e : best.entrySet()) {
+            int[][] rows = e.getValue().drain();
+            int[] pairs = new int[2 * rows[0].length];
+            for (int i = 0; i < rows[0].length; i++) {
+                pairs[2 * i] = rows[0][i];
+                pairs[2 * i + 1] = rows[1][i];
+            }
+            byDest.put(e.getKey(), pairs);
+        }
+        c = new Connections(byDest);
+        tableBuilds.incrementAndGet();
+        synchronized (this) {
+            if (changes == version) {
+                connections.put(key, c);
+            }
+        }
+        return c;
+    }
+
+    // drops the table entries a changed flight can be in; returns the origins affected
+    private List<String> changed(int row)
+    {
+        changes++;
+        int origin = cityGroup[store.originId(row)];
+        int day = store.day(row);
+        List<String> origins = new ArrayList<>();
+        origins.add(groupNames[origin]);
+        connections.remove((long) origin * (MAX_DAY + 1) + day);
+        // the flight is a second leg of the flights into its origin
+        for (int g = 0; g < nodes.length; g++) {
+            Node n = node(g, day);
+            if (g != origin && n != null && n.byDest.containsKey(origin)) {
+                origins.add(groupNames[g]);
+                connections.remove((long) g * (MAX_DAY + 1) + day);
+            }
+        }
+        return origins;
+    }
+
+    // the snapshot no longer matches the Flights table; the next start loads the table again
+    private void dropSnapshot()
+    {
+        if (snapshot != null) {
+            try {
+                Files.deleteIfExists(snapshot);
+            } catch (IOException e) {
+                throw new UncheckedIOException("cannot delete the outdated flight snapshot " + snapshot, e);
+            }
+            snapshot = null;
+        }
+    }
+
+    private int row(int fid)
+    {
+        if (rowsByFid == null) {
+            rowsByFid = new HashMap<>();
+            for (int r = 0; r < store.size(); r++) {
+                rowsByFid.put(store.fid(r), r);
+            }
+        }
+        Integer row = rowsByFid.get(fid);
+        return row == null ? -1 : row;
+    }
+
+    private static int indexOf(int[] rows, int row)
+    {
+        for (int i = 0; rows != null && i < rows.length; i++) {
+            if (rows[i] == row) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int[] without(int[] rows, int row)
+    {
+        int i = indexOf(rows, row);
+        if (i < 0) {
+            return rows == null ? NO_ROWS : rows;
+        }
+        int[] copy = new int[rows.length - 1];
+        System.arraycopy(rows, 0, copy, 0, i);
+        System.arraycopy(rows, i + 1, copy, i, copy.length - i);
+        return copy;
+    }
+
+    // inserts row in (actual_time, fid) order, as if its time were already time
+    private int[] with(int[] rows, int row, int time)
+    {
+        int fid = store.fid(row);
+        int i = 0;
+        while (i < rows.length && (store.time(rows[i]) < time || (store.time(rows[i]) == time && store.fid(rows[i]) < fid))) {
+            i++;
+        }
+        int[] copy = new int[rows.length + 1];
+        System.arraycopy(rows, 0, copy, 0, i);
+        copy[i] = row;
+        System.arraycopy(rows, i, copy, i + 1, rows.length - i);
+        return copy;
+    }
+
+    // ORDER BY actual_time, fid
+    private int compareRows(int a, int b)
+    {
+        int c = Integer.compare(store.time(a), store.time(b));
+        return c != 0 ? c : Integer.compare(store.fid(a), store.fid(b));
+    }
+
+    private int group(String city)
+    {
+        Integer g = groups.get(key(city));
+        return g == null ? -1 : g;
+    }
+
+    private Node node(int origin, int day)
+    {
+        if (origin < 0 || day < 1 || day > MAX_DAY || nodes[origin] == null) {
+            return null;
+        }
+        return nodes[origin][day];
+    }
+
+    private int[] rows(int origin, int dest, int day)
+    {
+        Node n = node(origin, day);
+        int[] rows = n == null ? null : n.byDest.get(dest);
+        return rows == null ? NO_ROWS : rows;
+    }
+
+    /**
+     * City names are compared the way the database does: case-insensitive and ignoring
+     * trailing blanks.
+     */
+    static String key(String city)
+    {
+        if (city == null) {
+            return "";
+        }
+        int end = city.length();
+        while (end > 0 && city.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return city.substring(0, end).toLowerCase(Locale.ROOT);
+    }
+}
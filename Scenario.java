@@ -0,0 +1,123 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A multi-user test scenario in the cases/*.txt format.
+ *
+ * Each user is a block of commands, a "*" line, the expected printouts and another "*"
+ * line. Alternate outcomes of the expected printouts are separated by "|" lines, and lines
+ * starting with "#" (or the rest of a line after "#") are comments. Used by {@link Grader}
+ * to check results and by {@link LoadGenerator} to replay the commands.
+ *
+ * A "!restart" command is not sent to the service: the Grader closes the user's session,
+ * restarts the storage as a new JVM would find it and opens a new session. It prints
+ * nothing, and only single-user scenarios may use it.
+ */
+public class Scenario
+{
+  static final String COMMENTS = "#";
+  static final String DELIMITER = "*"; // delimiter between command inputs and expected results
+  static final String SEPARATOR = "|"; // delimiter between alternate expected results
+  static final String RESTART = "!restart"; // restarts the storage between commands
+
+  /**
+   * One user of a scenario: the commands it runs and every possible printout.
+   */
+  public static class User
+  {
+    final List<String> cmds;
+    final List<String> results;
+
+    User (List<String> cmds, List<String> results)
+    {
+      this.cmds = cmds;
+      this.results = results;
+    }
+
+    public List<String> cmds () { return cmds; }
+
+    public List<String> results () { return results; }
+  }
+
+  /**
+   * Parse the input test case
+   * @param filename test case's path and file name
+   * @return the users of the scenario with commands to run and expected results
+   * @throws Exception
+   */
+  public static List<User> parse (String filename) throws Exception
+  {
+    List<User> users = new ArrayList<>();
+
+    List<String> cmds = new ArrayList<>();
+    List<String> results = new ArrayList<>();
+    String r = "";
+    boolean isCmd = true;
+
+    BufferedReader fr = new BufferedReader(new FileReader(filename));
+    String l;
+    int lineNumber = 0;
+    while ( (l = fr.readLine()) != null)
+    {
+      lineNumber++;
+      if (l.startsWith(COMMENTS))
+        continue;
+
+      else if (l.startsWith(DELIMITER))
+      {
+        if (isCmd)
+          isCmd = false;
+        else
+        {
+          results.add(r);
+          users.add(new User(cmds, results));
+          cmds = new ArrayList<>();
+          results = new ArrayList<>();
+          r = "";
+          isCmd = true;
+        }
+      }
+
+      else if (l.startsWith(SEPARATOR))
+      {
+        if (isCmd)
+          throw new Exception("input file is malformatted on line: " + lineNumber);
+        else
+        {
+          results.add(r);
+          r = "";
+        }
+      }
+
+      else
+      {
+        // remove trailing comments
+        l = l.split(COMMENTS, 2)[0];
+
+        if (isCmd)
+          cmds.add(l);
+        else
+          r = r + l + "\n";
+      }
+    }
+
+    fr.close();
+
+    // everything should be parsed by now and put into user objects
+    if (cmds.size() > 0 || r.length() > 0 || results.size() > 0)
+      throw new Exception("input file is malformatted, cmds.size()=" + cmds.size() + ", r.length()=" + r.length() + ", results.size()=" + results.size());
+
+    // check that all users have the same number of possible scenarios
+    int n = users.get(0).results().size();
+    for (int i = 1; i < users.size(); ++i)
+    {
+      int u = users.get(i).results().size();
+      if (u != n)
+        throw new Exception("user " + i + " should have " + n + " possible results rather than " + u);
+    }
+
+    return users;
+  }
+}
@@ -0,0 +1,213 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache of search results, shared by all sessions.
+ *
+ * Entries are keyed by (origin, destination, direct, day) and remember how many itineraries
+ * they were computed for. A search for n itineraries is answered from an entry computed for
+ * N >= n by slicing: the first min(n, D) of its D direct flights and then the first of its
+ * one-hop itineraries, exactly what a search for n would have returned. A search for more
+ * itineraries than cached is a miss and replaces the entry.
+ *
+ * The printed results only depend on the Flights table (capacity is the flight's capacity,
+ * not the seats left), so bookings and cancellations do not make entries stale. Entries
+ * expire after a time-to-live and can be dropped with {@link #invalidate} when flights change.
+ * A search that started before an invalidation does not put its result afterwards, see
+ * {@link #generation()}.
+ */
+public class SearchCache
+{
+    private static SearchCache shared;
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final Map<String, Entry> entries;
+    // bumped by every invalidation
+    private long generation;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Results of one search: direct and one-hop itineraries, each in {@code Itinerary} order.
+     */
+    public static class Result
+    {
+        public final List<Query.Itinerary> direct;
+        public final List<Query.Itinerary> indirect;
+
+        public Result(List<Query.Itinerary> direct, List<Query.Itinerary> indirect)
+        {
+            this.direct = direct;
+            this.indirect = indirect;
+        }
+    }
+
+    private static class Entry
+    {
+        private final String origin;
+        private final int day;
+        private final int n;
+        private final Result result;
+        private final long created;
+
+        private Entry(String origin, int day, int n, Result result, long created)
+        {
+            this.origin = origin;
+            this.day = day;
+            this.n = n;
+            this.result = result;
+            this.created = created;
+        }
+    }
+
+    public SearchCache(final int maxEntries, long ttlMillis)
+    {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1000000L;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > SearchCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache shared by all sessions in this JVM, creating it with the given
+     * settings the first time it is requested.
+     */
+    public static synchronized SearchCache shared(int maxEntries, long ttlMillis)
+    {
+        if (shared == null) {
+            shared = new SearchCache(maxEntries, ttlMillis);
+        }
+        return shared;
+    }
+
+    /**
+     * @return the results of searching for {@code n} itineraries, or null on a miss
+     */
+    public Result get(String origin, String dest, boolean direct, int day, int n)
+    {
+        String key = key(origin, dest, direct, day);
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+            if (e != null && System.nanoTime() - e.created > ttlNanos) {
+                entries.remove(key);
+                expirations.incrementAndGet();
+                e = null;
+            }
+        }
+        if (e == null || e.n < n) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        if (e.n == n) {
+            return e.result;
+        }
+        List<Query.Itinerary> d = e.result.direct.subList(0, Math.min(n, e.result.direct.size()));
+        int k = n - d.size();
+        List<Query.Itinerary> i = k > 0 ? e.result.indirect.subList(0, Math.min(k, e.result.indirect.size()))
+                                        : Collections.<Query.Itinerary>emptyList();
+        return new Result(d, i);
+    }
+
+    /**
+     * @return the current generation, to be read before a search whose result is put
+     */
+    public synchronized long generation()
+    {
+        return generation;
+    }
+
+    /**
+     * Caches the results of a search for {@code n} itineraries that started in
+     * {@code generation}; they are dropped if an invalidation happened since. An entry already
+     * computed for more itineraries is kept.
+     */
+    public void put(String origin, String dest, boolean direct, int day, int n, long generation, Result result)
+    {
+        if (maxEntries <= 0) {
+            return;
+        }
+        String key = key(origin, dest, direct, day);
+        Entry e = new Entry(RouteIndex.key(origin), day, n, result, System.nanoTime());
+        synchronized (this) {
+            if (generation != this.generation) {
+                return; // may have been computed from flights changed since
+            }
+            Entry old = entries.get(key);
+            if (old == null || old.n <= n || System.nanoTime() - old.created > ttlNanos) {
+                entries.put(key, e);
+            }
+        }
+    }
+
+    /**
+     * Drops every entry whose itineraries leave {@code origin} on {@code day}; with a null
+     * origin, every entry for that day. Call it when a flight is canceled or changed.
+     */
+    public synchronized void invalidate(String origin, int day)
+    {
+        generation++;
+        String originKey = origin == null ? null : RouteIndex.key(origin);
+        for (java.util.Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+            Entry e = it.next();
+            if (e.day == day && (originKey == null || e.origin.equals(originKey))) {
+                it.remove();
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized void invalidateAll()
+    {
+        generation++;
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public long hits() { return hits.get(); }
+
+    public long misses() { return misses.get(); }
+
+    public long evictions() { return evictions.get(); }
+
+    public long expirations() { return expirations.get(); }
+
+    public long invalidations() { return invalidations.get(); }
+
+    public String stats()
+    {
+        long h = hits.get();
+        long m = misses.get();
+        return "search cache: entries " + size() + "/" + maxEntries + " hits " + h + " misses " + m +
+               " hit rate " + (h + m == 0 ? 0 : 100 * h / (h + m)) + "%" +
+               " evictions " + evictions.get() + " expirations " + expirations.get() + " invalidations " + invalidations.get();
+    }
+
+    // cities compare like they do in the database, see RouteIndex.key
+    private static String key(String origin, String dest, boolean direct, int day)
+    {
+        return RouteIndex.key(origin) + '\u0000' + RouteIndex.key(dest) + '\u0000' + (direct ? 1 : 0) + '\u0000' + day;
+    }
+}
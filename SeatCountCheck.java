@@ -0,0 +1,98 @@
+import java.io.FileInputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Verifies the SeatCounts counters against the Reservations table.
+ *
+ * Usage: java SeatCountCheck [-repair]
+ *
+ * Prints every flight whose counter differs from the number of reservations on it. With
+ * -repair the counters are rebuilt from Reservations in one serializable transaction.
+ */
+public class SeatCountCheck
+{
+    private static final String BOOKED_PER_FLIGHT =
+        "SELECT fid, COUNT(*) AS booked " +
+        "FROM ((SELECT fid1 AS fid FROM Reservations) UNION ALL (SELECT fid2 FROM Reservations WHERE fid2 IS NOT NULL)) AS N " +
+        "GROUP BY fid";
+
+    static final String MISMATCHES =
+        "SELECT COALESCE(n.fid, s.fid) AS fid, ISNULL(n.booked, 0) AS expected, ISNULL(s.booked, 0) AS actual " +
+        "FROM (" + BOOKED_PER_FLIGHT + ") AS n FULL OUTER JOIN SeatCounts s ON s.fid = n.fid " +
+        "WHERE ISNULL(n.booked, 0) <> ISNULL(s.booked, 0) " +
+        "ORDER BY 1";
+
+    private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
+    private static final String DELETE_SEAT_COUNTS = "DELETE FROM SeatCounts";
+    private static final String REBUILD_SEAT_COUNTS = "INSERT INTO SeatCounts (fid, booked) " + BOOKED_PER_FLIGHT;
+    private static final String COMMIT_SQL = "COMMIT TRANSACTION";
+    private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
+
+    /**
+     * Returns one line per flight whose counter is out of step, in the form
+     * "fid [fid]: counted [n] booked [m]".
+     */
+    public static List<String> verify(Connection conn) throws SQLException
+    {
+        List<String> mismatches = new ArrayList<>();
+        PreparedStatement ps = conn.prepareStatement(MISMATCHES);
+        ResultSet rs = ps.executeQuery();
+        while (rs.next()) {
+            mismatches.add("fid " + rs.getInt("fid") + ": counted " + rs.getInt("actual") + " booked " + rs.getInt("expected"));
+        }
+        rs.close();
+        ps.close();
+        return mismatches;
+    }
+
+    /**
+     * Recomputes every counter from Reservations.
+     */
+    public static void repair(Connection conn) throws SQLException
+    {
+        conn.setAutoCommit(false);
+        try {
+            conn.prepareStatement(BEGIN_TRANSACTION_SQL).executeUpdate();
+            conn.prepareStatement(DELETE_SEAT_COUNTS).executeUpdate();
+            conn.prepareStatement(REBUILD_SEAT_COUNTS).executeUpdate();
+            conn.prepareStatement(COMMIT_SQL).executeUpdate();
+        } catch (SQLException e) {
+            try {
+                conn.prepareStatement(ROLLBACK_SQL).executeUpdate();
+            } catch (SQLException e1) {}
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        boolean repair = args.length > 0 && args[0].equals("-repair");
+
+        Properties configProps = new Properties();
+        configProps.load(new FileInputStream(FlightService.DBCONFIG_FILENAME));
+        ConnectionPool pool = ConnectionPool.shared(configProps);
+        ConnectionPool.PooledConnection pc = pool.borrow();
+        try {
+            List<String> mismatches = verify(pc.connection());
+            for (String m : mismatches)
+                System.out.println(m);
+            System.out.println(mismatches.size() + " flight(s) with inconsistent seat counts");
+
+            if (repair && mismatches.size() > 0) {
+                repair(pc.connection());
+                System.out.println("Rebuilt seat counts, " + verify(pc.connection()).size() + " flight(s) still inconsistent");
+            }
+        } finally {
+            pool.release(pc, false);
+            ConnectionPool.shutdownAll();
+        }
+    }
+}
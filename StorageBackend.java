@@ -0,0 +1,143 @@
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Storage operations of one {@code Query} session: users, flight search, reservations,
+ * balances and seat counts.
+ *
+ * A backend object belongs to one session and is used by one thread at a time; the data
+ * behind it is shared by all sessions of the JVM. Operations called between {@link #begin()}
+ * and {@link #commit()} or {@link #rollback()} form one serializable transaction; outside of
+ * one, every operation commits on its own. Failures are reported as SQLExceptions, and a
+ * transaction aborted for a deadlock or a lock timeout carries the SQL Server error code, so
+ * {@link TransactionRunner} retries it the same way for every backend.
+ *
+ * {@link JdbcBackend} keeps the data in the database named in dbconn.properties,
+ * {@link InMemoryBackend} in the JVM. flightservice.backend selects one of them.
+ */
+public interface StorageBackend
+{
+    /**
+     * Status of {@link #book}: booked, already a reservation on that day, a flight is full,
+     * or the booking kept conflicting with others.
+     */
+    int BOOKED = 0;
+    int SAME_DAY = 1;
+    int FULL = 2;
+    int CONFLICT = 3;
+
+    /**
+     * One row of Reservations with its flights; a flight is null if it no longer exists.
+     */
+    final class Reservation
+    {
+        public final int rid;
+        public final boolean paid;
+        public final Query.Flight f1;
+        public final Query.Flight f2;
+
+        public Reservation(int rid, boolean paid, Query.Flight f1, Query.Flight f2) {
+            this.rid = rid;
+            this.paid = paid;
+            this.f1 = f1;
+            this.f2 = f2;
+        }
+
+        /**
+         * @return the price of both flights
+         */
+        public int price() {
+            return (f1 == null ? 0 : f1.getPrice()) + (f2 == null ? 0 : f2.getPrice());
+        }
+
+        /**
+         * @return the day of the first flight, 0 if it no longer exists
+         */
+        public int day() {
+            return f1 == null ? 0 : f1.getDay();
+        }
+    }
+
+    void begin() throws SQLException;
+
+    /**
+     * On failure the transaction stays open until the caller rolls back.
+     */
+    void commit() throws SQLException;
+
+    /**
+     * Does nothing outside of a transaction.
+     */
+    void rollback() throws SQLException;
+
+    boolean inTransaction();
+
+    /**
+     * Warms up whatever the backend prepares ahead of use.
+     */
+    void prepare() throws SQLException;
+
+    /**
+     * Deletes all users, reservations and seat counts, and restarts reservation ids at 1.
+     */
+    void clear() throws SQLException;
+
+    /**
+     * Ends the session, rolling back a transaction still open.
+     */
+    void close();
+
+    /**
+     * @return the user's password, or "" if there is no such user
+     */
+    String password(String username) throws SQLException;
+
+    void insertUser(String username, String password, int balance) throws SQLException;
+
+    int balance(String username) throws SQLException;
+
+    void updateBalance(String username, int balance) throws SQLException;
+
+    /**
+     * @return a bit (day - 1) for every day of the month the user has a reservation on
+     */
+    int bookedDays(String username) throws SQLException;
+
+    /**
+     * The first {@code n} direct flights, ordered by (actual_time, fid).
+     */
+    List<Query.Itinerary> direct(String origin, String dest, int day, int n) throws SQLException;
+
+    /**
+     * The first {@code n} one-hop itineraries, ordered by (total time, first fid, second fid).
+     */
+    List<Query.Itinerary> indirect(String origin, String dest, int day, int n) throws SQLException;
+
+    /**
+     * Books an itinerary in a transaction of its own: checks that the user has no other
+     * reservation on the same day, takes a seat on each flight and inserts the reservation.
+     *
+     * @param f2 null for a direct flight
+     * @return {status, reservation id}, the id only when the status is BOOKED
+     */
+    int[] book(String username, Query.Flight f1, Query.Flight f2) throws SQLException;
+
+    /**
+     * @return the user's reservation {@code rid}, or null if the user has no such reservation
+     */
+    Reservation reservation(String username, int rid) throws SQLException;
+
+    /**
+     * @return the user's reservations ordered by id
+     */
+    List<Reservation> reservations(String username) throws SQLException;
+
+    void markPaid(int rid) throws SQLException;
+
+    /**
+     * Gives back the seats of reservation {@code rid}.
+     */
+    void releaseSeats(int rid) throws SQLException;
+
+    void deleteReservation(int rid) throws SQLException;
+}
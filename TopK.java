@@ -0,0 +1,170 @@
+import java.util.Arrays;
+
+/**
+ * Bounded selection of the k smallest one-hop candidates.
+ *
+ * Candidates are (first row, second row) pairs ordered by the precomputed key
+ * (total time, first fid, second fid), the ORDER BY of INDIRECT_SEARCH. The k best seen so
+ * far are kept in a max-heap on parallel int arrays, so a search holds at most k entries no
+ * matter how many connections exist, and {@link #worstTotal()} tells the producer when no
+ * further candidate can get in.
+ */
+public class TopK
+{
+    private final int k;
+    private int size;
+    // grown on demand up to k, so a large k costs nothing unless candidates exist
+    private int[] total;
+    private int[] fid1;
+    private int[] fid2;
+    private int[] row1;
+    private int[] row2;
+
+    public TopK(int k)
+    {
+        this.k = k;
+        int capacity = Math.max(0, Math.min(k, 16));
+        total = new int[capacity];
+        fid1 = new int[capacity];
+        fid2 = new int[capacity];
+        row1 = new int[capacity];
+        row2 = new int[capacity];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isFull()
+    {
+        return size >= k;
+    }
+
+    /**
+     * Total time of the worst entry kept. Once the heap is full, a candidate with a larger
+     * total can never be selected.
+     */
+    public int worstTotal()
+    {
+        return size == 0 ? Integer.MAX_VALUE : total[0];
+    }
+
+    /**
+     * Offers one candidate.
+     *
+     * @return true if it is currently among the k best
+     */
+    public boolean offer(int t, int f1, int f2, int r1, int r2)
+    {
+        if (k <= 0) {
+            return false;
+        }
+        if (size < k) {
+            if (size == total.length) {
+                grow();
+            }
+            set(size, t, f1, f2, r1, r2);
+            siftUp(size++);
+            return true;
+        }
+        if (compare(t, f1, f2, 0) >= 0) {
+            return false;
+        }
+        set(0, t, f1, f2, r1, r2);
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * Removes all entries and returns them best first, as {first rows, second rows}.
+     */
+    public int[][] drain()
+    {
+        int n = size;
+        int[][] rows = {new int[n], new int[n]};
+        for (int i = n - 1; i >= 0; i--) {
+            rows[0][i] = row1[0];
+            rows[1][i] = row2[0];
+            size--;
+            swap(0, size);
+            siftDown(0);
+        }
+        return rows;
+    }
+
+    // compares the candidate against entry i
+    private int compare(int t, int f1, int f2, int i)
+    {
+        int c = Integer.compare(t, total[i]);
+        if (c == 0) {
+            c = Integer.compare(f1, fid1[i]);
+        }
+        return c != 0 ? c : Integer.compare(f2, fid2[i]);
+    }
+
+    private int compare(int i, int j)
+    {
+        return compare(total[i], fid1[i], fid2[i], j);
+    }
+
+    private void siftUp(int i)
+    {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (compare(i, parent) <= 0) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i)
+    {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && compare(left, largest) > 0) {
+                largest = left;
+            }
+            if (right < size && compare(right, largest) > 0) {
+                largest = right;
+            }
+            if (largest == i) {
+                return;
+            }
+            swap(i, largest);
+            i = largest;
+        }
+    }
+
+    private void grow()
+    {
+        int capacity = (int) Math.min(k, 2L * total.length);
+        total = Arrays.copyOf(total, capacity);
+        fid1 = Arrays.copyOf(fid1, capacity);
+        fid2 = Arrays.copyOf(fid2, capacity);
+        row1 = Arrays.copyOf(row1, capacity);
+        row2 = Arrays.copyOf(row2, capacity);
+    }
+
+    private void set(int i, int t, int f1, int f2, int r1, int r2)
+    {
+        total[i] = t;
+        fid1[i] = f1;
+        fid2[i] = f2;
+        row1[i] = r1;
+        row2[i] = r2;
+    }
+
+    private void swap(int i, int j)
+    {
+        int t = total[i]; total[i] = total[j]; total[j] = t;
+        t = fid1[i]; fid1[i] = fid1[j]; fid1[j] = t;
+        t = fid2[i]; fid2[i] = fid2[j]; fid2[j] = t;
+        t = row1[i]; row1[i] = row1[j]; row1[j] = t;
+        t = row2[i]; row2[i] = row2[j]; row2[j] = t;
+    }
+}
@@ -0,0 +1,210 @@
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the transactions of {@code Query} and retries them when the database aborted them
+ * for reasons that say nothing about the transaction itself: being chosen as a deadlock
+ * victim (error 1205), a lock request timeout (1222), an update conflict (3960) or any
+ * other serialization failure (SQLState 40001).
+ *
+ * A retried transaction is rolled back and run again from the start after a randomized
+ * ("full jitter") exponential backoff, until it commits, fails for another reason, has been
+ * attempted maxAttempts times or would run past its deadline. Attempts, retries, give-ups,
+ * deadlocks and the time lost to failed attempts and backoff are counted per transaction type.
+ */
+public class TransactionRunner
+{
+    private static final int DEADLOCK_VICTIM = 1205;
+    private static final int LOCK_TIMEOUT = 1222;
+    private static final int UPDATE_CONFLICT = 3960;
+    private static final String SERIALIZATION_FAILURE = "40001";
+
+    private static TransactionRunner shared;
+
+    private final int maxAttempts;
+    private final long baseBackoffNanos;
+    private final long maxBackoffNanos;
+    private final long deadlineNanos;
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Work done inside one attempt.
+     */
+    public interface Work<T>
+    {
+        T run() throws SQLException;
+    }
+
+    /**
+     * Counters of one transaction type.
+     */
+    public static class Stats
+    {
+        public final AtomicLong transactions = new AtomicLong();
+        public final AtomicLong attempts = new AtomicLong();
+        public final AtomicLong retries = new AtomicLong();
+        public final AtomicLong givenUp = new AtomicLong();
+        // attempts chosen as deadlock victims, retried or not
+        public final AtomicLong deadlocks = new AtomicLong();
+        public final AtomicLong lostNanos = new AtomicLong();
+
+        @Override
+        public String toString() {
+            return "transactions " + transactions.get() + " attempts " + attempts.get() + " retries " + retries.get() +
+                   " given up " + givenUp.get() + " deadlocks " + deadlocks.get() + " lost " + TimeUnit.NANOSECONDS.toMillis(lostNanos.get()) + "ms";
+        }
+    }
+
+    public TransactionRunner(int maxAttempts, long baseBackoffMillis, long maxBackoffMillis, long deadlineMillis)
+    {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseBackoffNanos = TimeUnit.MILLISECONDS.toNanos(baseBackoffMillis);
+        this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    }
+
+    /**
+     * Returns the runner shared by all sessions in this JVM, configured from
+     * flightservice.tx_attempts, tx_backoff_ms, tx_max_backoff_ms and tx_deadline_ms.
+     */
+    public static synchronized TransactionRunner shared(Properties configProps)
+    {
+        if (shared == null) {
+            shared = new TransactionRunner(Integer.parseInt(configProps.getProperty("flightservice.tx_attempts", "5").trim()),
+                                           Long.parseLong(configProps.getProperty("flightservice.tx_backoff_ms", "5").trim()),
+                                           Long.parseLong(configProps.getProperty("flightservice.tx_max_backoff_ms", "200").trim()),
+                                           Long.parseLong(configProps.getProperty("flightservice.tx_deadline_ms", "2000").trim()));
+        }
+        return shared;
+    }
+
+    /**
+     * Runs {@code work} between {@code q.beginTransaction()} and {@code q.commitTransaction()},
+     * rolling back and retrying it as described above.
+     */
+    public <T> T inTransaction(String type, final Query q, final Work<T> work) throws SQLException
+    {
+        return retry(type, new Work<T>() {
+            public T run() throws SQLException {
+                q.beginTransaction();
+                try {
+                    T result = work.run();
+                    q.commitTransaction();
+                    return result;
+                } catch (SQLException e) {
+                    try {
+                        q.rollbackTransaction();
+                    } catch (SQLException e1) {}
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs {@code work}, which manages its own transaction (e.g. a stored procedure), and runs
+     * it again when it fails with a retryable error. Only a failure that is not retried counts
+     * as an error of the command in {@link Metrics}.
+     */
+    public <T> T retry(String type, Work<T> work) throws SQLException
+    {
+        Stats s = stats(type);
+        s.transactions.incrementAndGet();
+        long start = System.nanoTime();
+        for (int attempt = 1; ; attempt++) {
+            long attemptStart = System.nanoTime();
+            s.attempts.incrementAndGet();
+            try {
+                return work.run();
+            } catch (SQLException e) {
+                SQLException cause = retryableCause(e);
+                if (cause == null) {
+                    Metrics.failed();
+                    throw e;
+                }
+                if (cause.getErrorCode() == DEADLOCK_VICTIM) {
+                    s.deadlocks.incrementAndGet();
+                }
+                long backoff = backoff(attempt);
+                long now = System.nanoTime();
+                s.lostNanos.addAndGet(now - attemptStart);
+                if (attempt >= maxAttempts || now + backoff - start > deadlineNanos) {
+                    s.givenUp.incrementAndGet();
+                    Metrics.failed();
+                    throw e;
+                }
+                s.retries.incrementAndGet();
+                try {
+                    TimeUnit.NANOSECONDS.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    Metrics.failed();
+                    throw e;
+                } finally {
+                    s.lostNanos.addAndGet(System.nanoTime() - now);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if {@code e}, or an exception chained to it, is a deadlock, lock timeout
+     * or serialization failure
+     */
+    public static boolean isRetryable(SQLException e)
+    {
+        return retryableCause(e) != null;
+    }
+
+    // the exception in e's chain that makes it retryable, or null
+    private static SQLException retryableCause(SQLException e)
+    {
+        Throwable t = e;
+        for (int depth = 0; t != null && depth < 16; depth++) {
+            if (t instanceof SQLException) {
+                SQLException se = (SQLException) t;
+                int code = se.getErrorCode();
+                if (code == DEADLOCK_VICTIM || code == LOCK_TIMEOUT || code == UPDATE_CONFLICT
+                    || SERIALIZATION_FAILURE.equals(se.getSQLState())) {
+                    return se;
+                }
+            }
+            Throwable next = t.getCause();
+            if (next == null && t instanceof SQLException) {
+                next = ((SQLException) t).getNextException();
+            }
+            t = next;
+        }
+        return null;
+    }
+
+    public Stats stats(String type)
+    {
+        return stats.computeIfAbsent(type, k -> new Stats());
+    }
+
+    /**
+     * One line per transaction type.
+     */
+    public String stats()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Stats> e : new TreeMap<>(stats).entrySet()) {
+            sb.append("transactions ").append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // random in [0, min(max, base * 2^(attempt - 1))]
+    private long backoff(int attempt)
+    {
+        long ceiling = Math.min(maxBackoffNanos, baseBackoffNanos << Math.min(attempt - 1, 20));
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
@@ -0,0 +1,94 @@
+package flightservice.bench;
+
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Command parsing and dispatch: {@code FlightService.tokenize} and {@code FlightService.execute}.
+ *
+ * With session=anonymous, execute runs against a session that is not logged in and has no
+ * backend, so every command is answered before it reaches storage and only tokenizing,
+ * argument parsing and dispatch are measured. With session=loggedIn the session is logged in
+ * on the memory backend over the synthetic flights of {@link Flights}, so the commands do
+ * their work: the search (answered from the search cache after the first call, as in a
+ * running server), the book of a day that is already booked, the listing of that one
+ * reservation, and the cancel of a reservation that does not exist.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandBenchmark
+{
+    @Param({"search \"Seattle WA\" \"Boston MA\" 0 6 10", "book 3", "reservations", "cancel 12", "frobnicate"})
+    public String command;
+
+    @Param({"anonymous", "loggedIn"})
+    public String session;
+
+    private Object query;
+    // what execute runs: the same command, but a search with an invalid day so that it does
+    // not need flight data
+    private String executed;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        if (session.equals("anonymous")) {
+            // openConnection is never called, the session has no database
+            query = (Object) Service.NEW_QUERY.invokeExact("dbconn.properties");
+            executed = command.startsWith("search") ? command.replace(" 6 10", " 0 10") : command;
+            return;
+        }
+        Path dir = Files.createTempDirectory("command-bench");
+        Path csv = dir.resolve("flights.csv");
+        Flights.csv(csv);
+        Path config = dir.resolve("dbconn.properties");
+        try (Writer out = Files.newBufferedWriter(config, StandardCharsets.UTF_8)) {
+            out.write("flightservice.backend = memory\n");
+            out.write("flightservice.flights_csv = " + csv.toString().replace("\\", "/") + "\n");
+            out.write("flightservice.metrics_dump_s = 0\n");
+        }
+        query = (Object) Service.NEW_QUERY.invokeExact(config.toString());
+        Service.OPEN_CONNECTION.invokeExact(query);
+        // the user exists already when an earlier trial of this JVM created it
+        String created = (String) Service.EXECUTE.invokeExact(query, "create bench bench 100000000");
+        String login = (String) Service.EXECUTE.invokeExact(query, "login bench bench");
+        if (!login.startsWith("Logged in")) {
+            throw new IllegalStateException(login);
+        }
+        // itineraries to book from, and a reservation on their day
+        String found = (String) Service.EXECUTE.invokeExact(query, "search \"" + Flights.ORIGIN + "\" \"" + Flights.DEST + "\" 0 " + Flights.DAY + " 10");
+        String booked = (String) Service.EXECUTE.invokeExact(query, "book 3");
+        executed = command;
+    }
+
+    @Benchmark
+    public String[] tokenize() throws Throwable
+    {
+        return (String[]) Service.TOKENIZE.invokeExact(command);
+    }
+
+    @Benchmark
+    public String execute() throws Throwable
+    {
+        return (String) Service.EXECUTE.invokeExact(query, executed);
+    }
+}
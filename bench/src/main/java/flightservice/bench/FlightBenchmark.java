@@ -0,0 +1,64 @@
+package flightservice.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@code Flight.toString} and sorting itineraries with {@code Itinerary.compareTo}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FlightBenchmark
+{
+    @Param({"10", "100", "1000"})
+    public int n;
+
+    private List<Object> flights;
+    private List<Object> shuffled;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        Object routeIndex = Flights.routeIndex();
+        flights = Flights.flights(routeIndex, n);
+        shuffled = Flights.search(routeIndex, n);
+        Collections.shuffle(shuffled, new Random(42));
+    }
+
+    @Benchmark
+    public void flightToString(Blackhole bh)
+    {
+        for (Object f : flights) {
+            bh.consume(f.toString());
+        }
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public List<Object> sortItineraries()
+    {
+        List<Object> sorted = new ArrayList<>(shuffled);
+        Collections.sort((List) sorted);
+        return sorted;
+    }
+}
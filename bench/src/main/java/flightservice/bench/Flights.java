@@ -0,0 +1,119 @@
+package flightservice.bench;
+
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic, in-process flight data, so the benchmarks need no database.
+ *
+ * Every day has {@link #DIRECT} flights from {@link #ORIGIN} to {@link #DEST} and, through each
+ * of {@link #HUBS} connecting cities, {@link #LEGS} flights in and out, which gives tens of
+ * thousands of one-hop itineraries per day. The data is generated from a fixed seed, so every
+ * run measures the same rows.
+ */
+final class Flights
+{
+    static final String ORIGIN = "Seattle WA";
+    static final String DEST = "Boston MA";
+    static final int DAY = 6;
+    static final int DIRECT = 40;
+    static final int HUBS = 60;
+    static final int LEGS = 30;
+
+    private Flights() {}
+
+    /**
+     * Receives the generated flights.
+     */
+    private interface Sink
+    {
+        void add(int fid, int day, String carrier, int flightNum, String origin, String dest, int time, int capacity, int price)
+            throws Throwable;
+    }
+
+    /**
+     * @return a RouteIndex over the synthetic flights
+     */
+    static Object routeIndex() throws Throwable
+    {
+        Object builder = (Object) Service.NEW_BUILDER.invokeExact();
+        generate((fid, day, carrier, flightNum, origin, dest, time, capacity, price) -> {
+            Object ignored = (Object) Service.BUILDER_ADD.invokeExact(builder, fid, day, carrier, flightNum, origin, dest,
+                                                                      time, capacity, price);
+        });
+        Object store = (Object) Service.BUILDER_BUILD.invokeExact(builder);
+        return (Object) Service.NEW_ROUTE_INDEX.invokeExact(store);
+    }
+
+    /**
+     * Writes the synthetic flights as a flights CSV file, for the memory backend.
+     */
+    static void csv(Path file) throws Throwable
+    {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("fid,month_id,day_of_month,day_of_week_id,carrier_id,flight_num,origin_city,origin_state,dest_city,dest_state," +
+                      "departure_delay,taxi_out,arrival_delay,canceled,actual_time,distance,capacity,price\n");
+            generate((fid, day, carrier, flightNum, origin, dest, time, capacity, price) ->
+                out.write(fid + ",7," + day + ",1," + carrier + "," + flightNum + ",\"" + origin + "\",X,\"" + dest + "\",Y,0,0,0,0," +
+                          time + ",100," + capacity + "," + price + "\n"));
+        }
+    }
+
+    private static void generate(Sink sink) throws Throwable
+    {
+        Random random = new Random(42);
+        String[] carriers = {"AA", "AS", "DL", "UA", "WN"};
+        int fid = 1;
+        for (int day = 1; day <= 31; day++) {
+            for (int i = 0; i < DIRECT; i++) {
+                add(sink, fid++, day, carriers[random.nextInt(carriers.length)], random, ORIGIN, DEST, 300 + random.nextInt(120));
+            }
+            for (int h = 0; h < HUBS; h++) {
+                String hub = "Hub City " + h + " XX";
+                for (int i = 0; i < LEGS; i++) {
+                    add(sink, fid++, day, carriers[random.nextInt(carriers.length)], random, ORIGIN, hub, 60 + random.nextInt(240));
+                    add(sink, fid++, day, carriers[random.nextInt(carriers.length)], random, hub, DEST, 60 + random.nextInt(240));
+                }
+            }
+        }
+    }
+
+    /**
+     * The first n itineraries of a search from ORIGIN to DEST on DAY, in search order.
+     */
+    @SuppressWarnings("unchecked")
+    static List<Object> search(Object routeIndex, int n) throws Throwable
+    {
+        List<Object> itineraries = new ArrayList<>((List<Object>) (List<?>) Service.DIRECT.invokeExact(routeIndex, ORIGIN, DEST, DAY, n));
+        int k = n - itineraries.size();
+        if (k > 0) {
+            itineraries.addAll((List<Object>) (List<?>) Service.INDIRECT.invokeExact(routeIndex, ORIGIN, DEST, DAY, k));
+        }
+        Collections.sort((List) itineraries);
+        return itineraries;
+    }
+
+    /**
+     * n flights, taken from the synthetic store.
+     */
+    static List<Object> flights(Object routeIndex, int n) throws Throwable
+    {
+        List<Object> flights = new ArrayList<>();
+        for (Object it : search(routeIndex, n)) {
+            flights.add(it.getClass().getMethod("first").invoke(it));
+        }
+        return flights;
+    }
+
+    private static void add(Sink sink, int fid, int day, String carrier, Random random, String origin, String dest, int time)
+        throws Throwable
+    {
+        sink.add(fid, day, carrier, 1 + random.nextInt(3000), origin, dest, time, random.nextInt(20), 100 + random.nextInt(900));
+    }
+}
@@ -0,0 +1,22 @@
+package flightservice.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of benchmarks.jar: JMH's own main, with the allocation profiler ({@code -prof gc})
+ * on unless other profilers are asked for.
+ */
+public class Main
+{
+    public static void main(String[] args) throws Exception
+    {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        if (!options.contains("-prof") && !options.contains("-l") && !options.contains("-h") && !options.contains("-lprof")) {
+            options.add(0, "-prof");
+            options.add(1, "gc");
+        }
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+}
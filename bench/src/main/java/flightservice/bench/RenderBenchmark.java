@@ -0,0 +1,106 @@
+package flightservice.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Response rendering: a search response of n itineraries, and a reservations listing of n
+ * reservations, each through a session's {@code ResponseRenderer}. The *Concat variants
+ * build the same text the way Query did before the renderer, with {@code s +=} per line and
+ * the field concatenation of the old {@code Flight.toString()}, so that a run with
+ * {@code -prof gc} shows the bytes allocated per response before and after.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RenderBenchmark
+{
+    @Param({"10", "100", "1000"})
+    public int n;
+
+    private List<Object> itineraries;
+    private List<Object> flights;
+    private Object renderer;
+
+    @Setup
+    public void setup() throws Throwable
+    {
+        Object routeIndex = Flights.routeIndex();
+        itineraries = Flights.search(routeIndex, n);
+        flights = Flights.flights(routeIndex, n + 1);
+        renderer = (Object) Service.NEW_RENDERER.invokeExact();
+    }
+
+    @Benchmark
+    public String search() throws Throwable
+    {
+        Object r = (Object) Service.RENDER_ITINERARIES.invokeExact(renderer, (List) itineraries);
+        return (String) Service.FINISH.invokeExact(renderer);
+    }
+
+    /**
+     * n reservations, every other one with two flights.
+     */
+    @Benchmark
+    public String reservations() throws Throwable
+    {
+        for (int i = 0; i < n; i++) {
+            Object second = i % 2 == 0 ? flights.get(i + 1) : null;
+            Object r = (Object) Service.RENDER_RESERVATION.invokeExact(renderer, i + 1, i % 3 == 0, flights.get(i), second);
+        }
+        return (String) Service.FINISH.invokeExact(renderer);
+    }
+
+    @Benchmark
+    public String searchConcat() throws Throwable
+    {
+        String s = "";
+        for (int i = 0; i < itineraries.size(); i++) {
+            Object itinerary = itineraries.get(i);
+            Object f1 = (Object) Service.FIRST.invokeExact(itinerary);
+            Object f2 = (Object) Service.SECOND.invokeExact(itinerary);
+            int time = (int) Service.TIME.invokeExact(f1) + (f2 == null ? 0 : (int) Service.TIME.invokeExact(f2));
+            s += "Itinerary " + i + ": " + (int) Service.SIZE.invokeExact(itinerary) + " flight(s), " + time + " minutes\n";
+            s += flightConcat(f1) + (f2 == null ? "" : flightConcat(f2));
+        }
+        return s;
+    }
+
+    @Benchmark
+    public String reservationsConcat() throws Throwable
+    {
+        String message = "";
+        for (int i = 0; i < n; i++) {
+            Object second = i % 2 == 0 ? flights.get(i + 1) : null;
+            message += "Reservation " + (i + 1) + " paid: " + (i % 3 == 0 ? "true:\n" : "false:\n");
+            message += flightConcat(flights.get(i));
+            message += second == null ? "" : flightConcat(second);
+        }
+        return message;
+    }
+
+    // the old Flight.toString()
+    private static String flightConcat(Object f) throws Throwable
+    {
+        return "ID: " + (int) Service.FID.invokeExact(f) + " Day: " + (int) Service.DAY.invokeExact(f) +
+               " Carrier: " + (String) Service.CARRIER.invokeExact(f) + " Number: " + (String) Service.NUMBER.invokeExact(f) +
+               " Origin: " + (String) Service.ORIGIN.invokeExact(f) + " Dest: " + (String) Service.DEST.invokeExact(f) +
+               " Duration: " + (int) Service.TIME.invokeExact(f) + " Capacity: " + (int) Service.CAPACITY.invokeExact(f) +
+               " Price: " + (int) Service.PRICE.invokeExact(f) + "\n";
+    }
+}
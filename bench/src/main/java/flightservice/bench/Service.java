@@ -0,0 +1,106 @@
+package flightservice.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+/**
+ * Method handles into the service classes.
+ *
+ * The service lives in the default package, which Java code in a named package (as JMH
+ * requires) cannot refer to. The handles are static finals, so the JIT inlines them like
+ * direct calls. Service objects are passed around as {@code Object}.
+ */
+final class Service
+{
+    static final MethodHandle TOKENIZE;
+    static final MethodHandle EXECUTE;
+    static final MethodHandle NEW_QUERY;
+    static final MethodHandle OPEN_CONNECTION;
+    static final MethodHandle NEW_BUILDER;
+    static final MethodHandle BUILDER_ADD;
+    static final MethodHandle BUILDER_BUILD;
+    static final MethodHandle NEW_ROUTE_INDEX;
+    static final MethodHandle DIRECT;
+    static final MethodHandle INDIRECT;
+    static final MethodHandle STORE_FLIGHT;
+    static final MethodHandle NEW_RENDERER;
+    static final MethodHandle RENDER_ITINERARIES;
+    static final MethodHandle RENDER_RESERVATION;
+    static final MethodHandle FINISH;
+    static final MethodHandle FIRST;
+    static final MethodHandle SECOND;
+    static final MethodHandle SIZE;
+    static final MethodHandle FID;
+    static final MethodHandle DAY;
+    static final MethodHandle CARRIER;
+    static final MethodHandle NUMBER;
+    static final MethodHandle ORIGIN;
+    static final MethodHandle DEST;
+    static final MethodHandle TIME;
+    static final MethodHandle CAPACITY;
+    static final MethodHandle PRICE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> flightService = Class.forName("FlightService");
+            Class<?> query = Class.forName("Query");
+            Class<?> flight = Class.forName("Query$Flight");
+            Class<?> itinerary = Class.forName("Query$Itinerary");
+            Class<?> store = Class.forName("FlightStore");
+            Class<?> builder = Class.forName("FlightStore$Builder");
+            Class<?> routeIndex = Class.forName("RouteIndex");
+            Class<?> renderer = Class.forName("ResponseRenderer");
+
+            TOKENIZE = lookup.findStatic(flightService, "tokenize", MethodType.methodType(String[].class, String.class));
+            EXECUTE = erase(lookup.findStatic(flightService, "execute", MethodType.methodType(String.class, query, String.class)));
+            NEW_QUERY = erase(lookup.findConstructor(query, MethodType.methodType(void.class, String.class)));
+            OPEN_CONNECTION = erase(lookup.findVirtual(query, "openConnection", MethodType.methodType(void.class)));
+            NEW_BUILDER = erase(lookup.findConstructor(builder, MethodType.methodType(void.class)));
+            BUILDER_ADD = erase(lookup.findVirtual(builder, "add", MethodType.methodType(builder, int.class, int.class, String.class, int.class,
+                                                                                         String.class, String.class, int.class, int.class, int.class)));
+            BUILDER_BUILD = erase(lookup.findVirtual(builder, "build", MethodType.methodType(store)));
+            NEW_ROUTE_INDEX = erase(lookup.findConstructor(routeIndex, MethodType.methodType(void.class, store)));
+            DIRECT = erase(lookup.findVirtual(routeIndex, "direct", MethodType.methodType(List.class, String.class, String.class, int.class, int.class)));
+            INDIRECT = erase(lookup.findVirtual(routeIndex, "indirect", MethodType.methodType(List.class, String.class, String.class, int.class, int.class)));
+            STORE_FLIGHT = erase(lookup.findVirtual(store, "flight", MethodType.methodType(flight, int.class)));
+            NEW_RENDERER = erase(lookup.findConstructor(renderer, MethodType.methodType(void.class)));
+            RENDER_ITINERARIES = erase(lookup.findVirtual(renderer, "itineraries", MethodType.methodType(renderer, List.class)));
+            RENDER_RESERVATION = erase(lookup.findVirtual(renderer, "reservation", MethodType.methodType(renderer, int.class, boolean.class, flight, flight)));
+            FINISH = erase(lookup.findVirtual(renderer, "finish", MethodType.methodType(String.class)));
+            FIRST = erase(lookup.findVirtual(itinerary, "first", MethodType.methodType(flight)));
+            SECOND = erase(lookup.findVirtual(itinerary, "second", MethodType.methodType(flight)));
+            SIZE = erase(lookup.findVirtual(itinerary, "size", MethodType.methodType(int.class)));
+            FID = erase(lookup.findVirtual(flight, "getFid", MethodType.methodType(int.class)));
+            DAY = erase(lookup.findVirtual(flight, "getDay", MethodType.methodType(int.class)));
+            CARRIER = erase(lookup.findVirtual(flight, "getCarrierId", MethodType.methodType(String.class)));
+            NUMBER = erase(lookup.findVirtual(flight, "getFlightNum", MethodType.methodType(String.class)));
+            ORIGIN = erase(lookup.findVirtual(flight, "getOriginCity", MethodType.methodType(String.class)));
+            DEST = erase(lookup.findVirtual(flight, "getDestCity", MethodType.methodType(String.class)));
+            TIME = erase(lookup.findVirtual(flight, "getTime", MethodType.methodType(int.class)));
+            CAPACITY = erase(lookup.findVirtual(flight, "getCapacity", MethodType.methodType(int.class)));
+            PRICE = erase(lookup.findVirtual(flight, "getPrice", MethodType.methodType(int.class)));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Service() {}
+
+    // every service class in the signature becomes Object, so callers can use invokeExact
+    private static MethodHandle erase(MethodHandle h)
+    {
+        MethodType t = h.type();
+        for (int i = 0; i < t.parameterCount(); i++) {
+            if (!t.parameterType(i).isPrimitive() && t.parameterType(i).getPackageName().isEmpty()) {
+                t = t.changeParameterType(i, Object.class);
+            }
+        }
+        if (!t.returnType().isPrimitive() && t.returnType().getPackageName().isEmpty()) {
+            t = t.changeReturnType(Object.class);
+        }
+        return h.asType(t);
+    }
+}
@@ -29,12 +29,106 @@ CREATE TABLE Users(username VARCHAR(20) PRIMARY KEY,
                    password VARCHAR(20),
                    balance INT);
 
-CREATE TABLE Reservations(rid INT IDENTITY (1,1) PRIMARY KEY,
+-- Reservation ids come from ReservationIds rather than an IDENTITY column, see ReservationIds.java.
+CREATE TABLE Reservations(rid INT PRIMARY KEY,
                           paid INT,
                           username VARCHAR(20) REFERENCES Users(username),
                           fid1 INT,
                           fid2 INT);
 
+-- The next reservation id to hand out, in a single row. Ids are taken one at a time inside
+-- BookItinerary, or reserved in blocks by the application when reservation_id_block > 1; either
+-- way the row only grows, so ids are never reused.
+CREATE TABLE ReservationIds(next_rid INT NOT NULL);
+INSERT INTO ReservationIds VALUES (1);
+
+-- Number of booked seats per flight, kept in step with Reservations by the book and cancel
+-- transactions. A flight gets its row on its first booking. Run SeatCountCheck to compare the
+-- counters against Reservations (and -repair to rebuild them, e.g. on an existing database).
+-- version is bumped on every change; optimistic booking only updates the row it has read.
+CREATE TABLE SeatCounts(fid INT PRIMARY KEY,
+                        booked INT NOT NULL,
+                        version INT NOT NULL DEFAULT 0);
+
+-- The indexes and views the service's queries need are added by the migrations in
+-- migrations/; run java Migrate after this script.
 create index username on users(username);
 create index fid on flights(fid);
 create index rid on reservations(rid);
+GO
+
+-- A procedure runs with the QUOTED_IDENTIFIER and ANSI_NULLS settings it was created with,
+-- and sqlcmd creates it with QUOTED_IDENTIFIER OFF unless it is run with -I. Indexed views
+-- on the tables it changes need both ON for every statement that changes them.
+SET QUOTED_IDENTIFIER ON;
+SET ANSI_NULLS ON;
+GO
+
+-- Books an itinerary in one server-side transaction: checks that the user has no other
+-- reservation on the same day, takes a seat on each flight and inserts the reservation.
+-- @status is 0 when booked (@rid holds the new reservation ID), 1 when the user already has
+-- a reservation on that day and 2 when one of the flights is full.
+-- A non-NULL @rid on the way in is the id to book under, taken from a block the application
+-- reserved; a NULL one has the next id taken from ReservationIds in the booking transaction.
+CREATE PROCEDURE BookItinerary @username VARCHAR(20),
+                               @fid1 INT,
+                               @fid2 INT,
+                               @status INT OUTPUT,
+                               @rid INT OUTPUT
+AS
+BEGIN
+    SET NOCOUNT ON;
+    SET XACT_ABORT ON;
+    SET TRANSACTION ISOLATION LEVEL SERIALIZABLE;
+    DECLARE @givenRid INT = @rid;
+    SET @rid = NULL;
+
+    DECLARE @day INT, @capacity1 INT, @capacity2 INT;
+    SELECT @day = day_of_month, @capacity1 = capacity FROM Flights WHERE fid = @fid1;
+    SELECT @capacity2 = capacity FROM Flights WHERE fid = @fid2;
+
+    BEGIN TRANSACTION;
+
+    IF EXISTS (SELECT * FROM Reservations r JOIN Flights f ON f.fid = r.fid1
+               WHERE r.username = @username AND f.day_of_month = @day)
+    BEGIN
+        COMMIT TRANSACTION;
+        SET @status = 1;
+        RETURN;
+    END
+
+    -- A flight's counter row is created on its first booking. The update lock on its key
+    -- makes a concurrent first booking wait here and then find the row, instead of both
+    -- inserting it and one failing with a duplicate key.
+    IF NOT EXISTS (SELECT * FROM SeatCounts WITH (UPDLOCK, HOLDLOCK) WHERE fid = @fid1)
+        INSERT INTO SeatCounts (fid, booked) VALUES (@fid1, 0);
+    UPDATE SeatCounts SET booked = booked + 1, version = version + 1 WHERE fid = @fid1 AND booked < @capacity1;
+    IF @@ROWCOUNT = 0
+    BEGIN
+        ROLLBACK TRANSACTION;
+        SET @status = 2;
+        RETURN;
+    END
+
+    IF @fid2 IS NOT NULL
+    BEGIN
+        IF NOT EXISTS (SELECT * FROM SeatCounts WITH (UPDLOCK, HOLDLOCK) WHERE fid = @fid2)
+            INSERT INTO SeatCounts (fid, booked) VALUES (@fid2, 0);
+        UPDATE SeatCounts SET booked = booked + 1, version = version + 1 WHERE fid = @fid2 AND booked < @capacity2;
+        IF @@ROWCOUNT = 0
+        BEGIN
+            ROLLBACK TRANSACTION; -- also gives back the seat on the first flight
+            SET @status = 2;
+            RETURN;
+        END
+    END
+
+    IF @givenRid IS NULL
+        UPDATE ReservationIds SET @givenRid = next_rid, next_rid = next_rid + 1;
+    INSERT INTO Reservations VALUES (@givenRid, 0, @username, @fid1, @fid2);
+    SET @rid = @givenRid;
+
+    COMMIT TRANSACTION;
+    SET @status = 0;
+END
+GO
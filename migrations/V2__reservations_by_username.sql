@@ -0,0 +1,5 @@
+-- Reservations are always read by user: the reservations listing, the same-day check of a
+-- booking and the days a user has booked. The clustered key rid is part of every nonclustered
+-- index, so the rows of a user come out in rid order as the listing wants them.
+CREATE INDEX Reservations_username ON Reservations(username)
+    INCLUDE (paid, fid1, fid2);
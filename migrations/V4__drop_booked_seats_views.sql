@@ -0,0 +1,8 @@
+-- The booked seat views of migration 3 were maintained by every book and cancel only so that
+-- SeatCountCheck could count seats without grouping Reservations. SeatCounts is the running
+-- count the service keeps anyway, and the check is an offline tool that may as well scan, so
+-- the views go.
+DROP VIEW IF EXISTS dbo.BookedSeats1;
+GO
+
+DROP VIEW IF EXISTS dbo.BookedSeats2;
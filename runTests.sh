@@ -1,8 +1,10 @@
 #!/bin/bash
 
-if [[ "$#" -ne 3 ]]; then
-  echo "Usage: runTests.sh <source folder> <output folder> <folder name containing test cases>"
+if [[ "$#" -ne 3 && "$#" -ne 4 ]]; then
+  echo "Usage: runTests.sh <source folder> <output folder> <folder name containing test cases> [<config file>]"
   echo "Compiles java files in <source folder> and put the class files in <output folder>"
+  echo "Runs the cases against <config file>, dbconn.properties by default"
+  echo "e.g. runTests.sh . out test/cases test/memory.properties runs without a database"
   echo "WARNING: output folder is initially deleted and recreated!!!"
   exit 1
 fi
@@ -10,6 +12,7 @@ fi
 src=$1
 out=$2
 cases=$3
+config=${4:-dbconn.properties}
 
 rm -rf $out
 mkdir $out
@@ -23,5 +26,5 @@ jar -cvf out.jar *
 cd -;
 
 # run actual tests
-java -Dfolder=$cases -cp lib/junit-4.12.jar:lib/hamcrest-core-1.3.jar:./lib/sqljdbc4.jar:$out/out.jar \
+java -Dfolder=$cases -Ddbconn=$config -cp lib/junit-4.12.jar:lib/hamcrest-core-1.3.jar:./lib/sqljdbc4.jar:$out/out.jar \
   org.junit.runner.JUnitCore Grader